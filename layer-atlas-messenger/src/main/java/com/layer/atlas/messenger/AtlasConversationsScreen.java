@@ -15,8 +15,12 @@
  */
 package com.layer.atlas.messenger;
 
+import java.util.List;
+
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
@@ -24,15 +28,19 @@ import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.zxing.integration.android.IntentIntegrator;
+import com.layer.atlas.Atlas;
 import com.layer.atlas.Atlas.Tools;
 import com.layer.atlas.AtlasConversationsList;
 import com.layer.atlas.AtlasConversationsList.ConversationClickListener;
 import com.layer.atlas.AtlasConversationsList.ConversationLongClickListener;
+import com.layer.atlas.messenger.AtlasSearchIndex.ConversationHit;
+import com.layer.atlas.messenger.AtlasSearchIndex.SearchResult;
 import com.layer.sdk.messaging.Conversation;
 import com.layer.sdk.query.Predicate;
 import com.layer.sdk.query.Query;
@@ -51,6 +59,9 @@ public class AtlasConversationsScreen extends Activity {
     
     /** Switch it to <code>true</code> to see {@link #AtlasConversationsScreen} Query support in action */
     private static final boolean USE_QUERY = false;
+    
+    /** message hits are not shown, conversations are ranked by them */
+    private static final int SEARCH_MAX_MESSAGES = 100;
 
     private MessengerApp app;
 
@@ -112,6 +123,9 @@ public class AtlasConversationsScreen extends Activity {
             isInitialized = true;
         }
         app.getLayerClient().registerEventListener(conversationsList);
+        if (app.getLayerClient().isAuthenticated()) {
+            app.getSearchIndex().start();
+        }
         updateValues();
     }
     
@@ -218,11 +232,61 @@ public class AtlasConversationsScreen extends Activity {
     }
 
     public void openChatScreen(Conversation conv, boolean newConversation) {
+        openChatScreen(conv, null);
+    }
+    
+    /** @param searchQuery - words to highlight in conversation. Could be null */
+    public void openChatScreen(Conversation conv, String searchQuery) {
         Context context = this;
         Intent intent = new Intent(context, AtlasMessagesScreen.class);
         intent.putExtra(AtlasMessagesScreen.EXTRA_CONVERSATION_URI, conv.getId().toString());
+        if (searchQuery != null) intent.putExtra(AtlasMessagesScreen.EXTRA_SEARCH_QUERY, searchQuery);
         startActivity(intent);
     }
+    
+    private void showSearchDialog() {
+        final EditText queryText = new EditText(this);
+        queryText.setSingleLine();
+        queryText.setHint("Search messages");
+        new AlertDialog.Builder(this)
+            .setView(queryText)
+            .setPositiveButton("Search", new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    app.getSearchIndex().search(queryText.getText().toString(), SEARCH_MAX_MESSAGES, new AtlasSearchIndex.SearchListener() {
+                        public void onSearchResults(String query, SearchResult result) {
+                            showSearchResults(query, result);
+                        }
+                    });
+                }
+            })
+            .setNegativeButton(android.R.string.cancel, null)
+            .show();
+    }
+    
+    private void showSearchResults(final String query, SearchResult result) {
+        if (isFinishing()) return;
+        if (result.conversations.isEmpty()) {
+            Toast.makeText(this, "Nothing found for: " + query, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final List<ConversationHit> hits = result.conversations;
+        String userId = app.getLayerClient().getAuthenticatedUserId();
+        String[] titles = new String[hits.size()];
+        for (int i = 0; i < hits.size(); i++) {
+            Conversation conv = app.getLayerClient().getConversation(hits.get(i).conversationId);
+            String title = conv != null ? Atlas.getTitle(conv, app.getParticipantProvider(), userId) : hits.get(i).conversationId.toString();
+            titles[i] = title + " (" + hits.get(i).hits + ")";
+        }
+        new AlertDialog.Builder(this)
+            .setTitle("Found: " + query)
+            .setItems(titles, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    Conversation conv = app.getLayerClient().getConversation(hits.get(which).conversationId);
+                    if (conv != null) openChatScreen(conv, query);
+                }
+            })
+            .show();
+    }
 
     private void prepareActionBar() {
         ((TextView)findViewById(R.id.atlas_actionbar_title_text)).setText("Conversations");
@@ -238,10 +302,10 @@ public class AtlasConversationsScreen extends Activity {
 
         ImageView searchBtn = (ImageView) findViewById(R.id.atlas_actionbar_right_btn);
         searchBtn.setImageResource(R.drawable.atlas_ctl_btn_search);
-        searchBtn.setVisibility(View.GONE);
+        searchBtn.setVisibility(View.VISIBLE);
         searchBtn.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
-                Toast.makeText(v.getContext(), "Title should be replaced by edit text here...", Toast.LENGTH_LONG).show();
+                showSearchDialog();
             }
         });
         Tools.setStatusBarColor(getWindow(), getResources().getColor(R.color.atlas_background_blue_dark));
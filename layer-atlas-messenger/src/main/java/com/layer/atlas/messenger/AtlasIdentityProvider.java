@@ -220,6 +220,7 @@ public class AtlasIdentityProvider implements Atlas.ParticipantProvider {
                 participantsMap.put(participant.userId, participant);
             }
         }
+        Atlas.avatarCache.clear();
     }
 
     private boolean load() {
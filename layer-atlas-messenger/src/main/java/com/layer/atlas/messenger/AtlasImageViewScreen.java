@@ -30,18 +30,17 @@ import android.widget.CheckBox;
 import com.layer.atlas.Atlas;
 import com.layer.atlas.Atlas.ImageLoader.ImageSpec;
 import com.layer.atlas.Atlas.Tools;
+import com.layer.atlas.AtlasImagePipeline;
 import com.layer.atlas.AtlasImageView2;
 import com.layer.atlas.AtlasProgressView;
 import com.layer.atlas.GIFDrawable;
 import com.layer.atlas.cells.ImageCell;
-import com.layer.sdk.listeners.LayerProgressListener;
-import com.layer.sdk.messaging.MessagePart;
 
 /**
  * @author Oleg Orlov
  * @since  17 Jun 2015
  */
-public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.ImageLoadListener, LayerProgressListener {
+public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.ImageLoadListener, AtlasImagePipeline.Listener {
     private static final String TAG = AtlasImageViewScreen.class.getSimpleName();
     private static final boolean debug = false;
     private static final boolean debugControls = false;
@@ -52,11 +51,13 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
     private CheckBox decorCheck;
     
     private ImageCell cell;
+    /** shared with the cell, so downloads and decodes done for the list are reused here */
+    private AtlasImagePipeline pipeline;
     private Drawable previewDrawable;
     private Drawable fullDrawable;
-    
-    private long downloadBytesPreview = -1;
-    private long downloadBytesFull = -1;
+    /** size full image is requested from {@link #pipeline} for. 0 if not requested */
+    private int requestedWidth;
+    private int requestedHeight;
     
     private int defaultUIFlags;
 
@@ -73,13 +74,10 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
         if (debug) Log.w(TAG, "onCreate() cell: " + cell);
         if (cell == null) finish();
         
-        if (cell.previewPart != null && ! cell.previewPart.isContentReady() ) {
-            cell.previewPart.download(this);
-        }
-        
-        if ( ! cell.fullPart.isContentReady() ) {
-            cell.fullPart.download(this);
-        }
+        pipeline = cell.getPipeline();
+        pipeline.addListener(this);
+        if (cell.previewPart != null) pipeline.download(cell.previewPart);
+        pipeline.loadFull();
         
         this.imageViewer = (AtlasImageView2) findViewById(R.id.atlas_screen_image_view_image);
         this.imageViewer.setOnClickListener(new OnClickListener() {
@@ -101,6 +99,19 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
         updateValues();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (cell == null) return;
+        // nobody would see images requested for this screen
+        pipeline.removeListener(this);
+        if (Atlas.MIME_TYPE_IMAGE_GIF.equals(cell.messagePart.getMimeType())) {
+            Atlas.imageLoader.cancel(cell.fullPart.getId(), this);
+        } else if (fullDrawable == null && requestedWidth > 0) {
+            pipeline.cancelFull(requestedWidth, requestedHeight);
+        }
+    }
+    
     private void updateDecor() {
         if (decorCheck.isChecked()) {
             float angle = 0;
@@ -122,47 +133,46 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
         runOnUiThread(UPDATE_VALUES_RUNNABLE);
     }
     
+    @Override
+    public void onImageUpdate(AtlasImagePipeline pipeline) {
+        runOnUiThread(UPDATE_VALUES_RUNNABLE);
+    }
+    
     private void updateValues() {
         
+        DisplayMetrics dm = new DisplayMetrics();
+        this.getWindowManager().getDefaultDisplay().getMetrics(dm);
+        final int requiredWidth  = imageViewer.getWidth()  != 0 ? imageViewer.getWidth()  : dm.widthPixels;
+        final int requiredHeight = imageViewer.getHeight() != 0 ? imageViewer.getHeight() : dm.heightPixels;
+        
         // prepare drawables
         if (fullDrawable == null) {
-            // build fullDrawable
-            Object image = Atlas.imageLoader.getImageFromCache(cell.fullPart.getId());
-            if (image != null) {
-                if (Atlas.MIME_TYPE_IMAGE_GIF.equals(cell.messagePart.getMimeType())) {
-                    fullDrawable = new GIFDrawable((Movie)image);
-                } else {
-                    Bitmap fullBmp = (Bitmap) image;
+            if (Atlas.MIME_TYPE_IMAGE_GIF.equals(cell.messagePart.getMimeType())) {
+                // Movie is not scaled, so it is decoded and cached by part id
+                Movie mov = (Movie) Atlas.imageLoader.getImageFromCache(cell.fullPart.getId());
+                if (mov != null) {
+                    fullDrawable = new GIFDrawable(mov);
+                } else if (cell.fullPart.isContentReady() || pipeline.isDownloading(cell.fullPart)) {
+                    Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartBufferedStreamProvider(cell.fullPart)
+                        , requiredWidth, requiredHeight, true, this);
+                }
+            } else {
+                requestedWidth = requiredWidth;
+                requestedHeight = requiredHeight;
+                Bitmap fullBmp = pipeline.getFullBitmap(requiredWidth, requiredHeight);
+                if (fullBmp != null) {
                     fullDrawable = new BitmapDrawable(fullBmp);
                     if (fullBmp.getWidth() > 2048 || fullBmp.getHeight() > 2048) {
                         if (debug) Log.w(TAG, "updateValues() enabling buffering... bitmap: " + fullBmp);
                         imageViewer.setUseBitmapBuffer(true);
                     }
                 }
-            } else {
-                DisplayMetrics dm = new DisplayMetrics();
-                this.getWindowManager().getDefaultDisplay().getMetrics(dm);
-                
-                final int requiredWidth  = imageViewer.getWidth()  != 0 ? imageViewer.getWidth()  : dm.widthPixels;
-                final int requiredHeight = imageViewer.getHeight() != 0 ? imageViewer.getHeight() : dm.heightPixels;
-
-                if (Atlas.MIME_TYPE_IMAGE_GIF.equals(cell.messagePart.getMimeType())) {
-                    Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartBufferedStreamProvider(cell.fullPart)
-                        , requiredWidth, requiredHeight, true, this);
-                } else {
-                    Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartStreamProvider(cell.fullPart)
-                        , requiredWidth, requiredHeight, false, this);
-                }
             }
         }
         
         if (previewDrawable == null && cell.previewPart != null) {
-            Bitmap previewBmp = (Bitmap) Atlas.imageLoader.getImageFromCache(cell.previewPart.getId());
-            if (previewBmp != null) {
-                previewDrawable = new BitmapDrawable(previewBmp);
-            } else { 
-                Atlas.imageLoader.requestImage(cell.previewPart.getId(), new Atlas.MessagePartStreamProvider(cell.previewPart), this);
-            }
+            Bitmap previewBmp = pipeline.getPreviewBitmap(requiredWidth, requiredHeight);
+            if (previewBmp != null) previewDrawable = new BitmapDrawable(previewBmp);
         }
         
         if (hdCheck.isChecked()) {
@@ -183,62 +193,13 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
         progressView.setVisibility(fullDrawable == null ? View.VISIBLE : View.GONE);
         
         float progress = 0.0f;
-        if (downloadBytesPreview > -1) progress = 1.0f * downloadBytesPreview / cell.previewPart.getSize();
-        if (downloadBytesFull > -1) progress = 1.0f * downloadBytesFull / cell.fullPart.getSize();
+        float previewProgress = cell.previewPart != null ? pipeline.getDownloadProgress(cell.previewPart) : -1;
+        float fullProgress = pipeline.getDownloadProgress(cell.fullPart);
+        if (previewProgress > -1) progress = previewProgress;
+        if (fullProgress > -1) progress = fullProgress;
         progressView.setProgress(progress);
     }
 
-    long downloadStartedFull;
-    long downloadStartedPreview;
-    
-    @Override
-    public void onProgressStart(MessagePart part, Operation operation) {
-        if (part == cell.fullPart) {
-            downloadBytesFull = 0;
-            downloadStartedFull = System.currentTimeMillis();
-        } else {
-            downloadBytesPreview = 0;
-            downloadStartedPreview = System.currentTimeMillis();
-        }
-        if (debug) Log.w(TAG, "onProgressStart() started, part: " + part.getId() + ", size: " + part.getSize());
-    }
-
-    @Override
-    public void onProgressUpdate(MessagePart part, Operation operation, long transferredBytes) {
-        float secSpent = 0.01f;
-        if (part == cell.fullPart) {
-            downloadBytesFull = transferredBytes;
-            secSpent = (System.currentTimeMillis() - downloadStartedFull) / 1000f;
-        } else {
-            downloadBytesPreview = transferredBytes;
-            secSpent = (System.currentTimeMillis() - downloadStartedPreview) / 1000f;
-        }
-        if (debug) Log.w(TAG, "onProgressUpdate() transferred: " + transferredBytes + ", in: " + secSpent 
-                + "s, speed: " + (0.001f * transferredBytes / secSpent) + "kbs");
-        
-        runOnUiThread(UPDATE_VALUES_RUNNABLE);
-    }
-
-    @Override
-    public void onProgressComplete(MessagePart part, Operation operation) {
-        float secSpent;
-        if (part == cell.fullPart) {
-            secSpent = (System.currentTimeMillis() - downloadStartedFull) / 1000f;
-        } else {
-            secSpent = (System.currentTimeMillis() - downloadStartedPreview) / 1000f;
-        }
-        
-        if (debug) Log.w(TAG, "onProgressComplete() part: " + part.getId() + ", size: " + part.getSize() + ", in: " + secSpent
-                + "s, speed: " + (0.001f * part.getSize() / secSpent) + "kbs");
-
-        runOnUiThread(UPDATE_VALUES_RUNNABLE);
-    }
-
-    @Override
-    public void onProgressError(MessagePart part, Operation operation, Throwable cause) {
-        Log.e(TAG, "onProgressError() download failed. part: " + part, cause);
-    }
-    
     private final Runnable UPDATE_VALUES_RUNNABLE = new Runnable() {
         public void run() {
             updateValues();
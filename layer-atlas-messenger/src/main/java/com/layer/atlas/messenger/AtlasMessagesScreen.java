@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 import org.json.JSONException;
@@ -80,6 +81,8 @@ public class AtlasMessagesScreen extends Activity {
     
     public static final String EXTRA_CONVERSATION_IS_NEW = "conversation.new";
     public static final String EXTRA_CONVERSATION_URI = keys.CONVERSATION_URI;
+    /** words to highlight. Screen is scrolled to the latest message containing them */
+    public static final String EXTRA_SEARCH_QUERY = "search.query";
     
     public static final int REQUEST_CODE_SETTINGS = 101;
     public static final int REQUEST_CODE_GALLERY  = 111;
@@ -194,6 +197,16 @@ public class AtlasMessagesScreen extends Activity {
             messagesList.setConversation(conv);
         }
         
+        String searchQuery = getIntent().getStringExtra(EXTRA_SEARCH_QUERY);
+        if (searchQuery != null) {
+            messagesList.setHighlight(searchQuery);
+            messagesList.search(searchQuery, new AtlasMessagesList.SearchListener() {
+                public void onSearchResults(String query, List<Uri> partIds) {
+                    if (!partIds.isEmpty()) messagesList.jumpToPart(partIds.get(partIds.size() - 1));
+                }
+            });
+        }
+        
         messagesList.setItemClickListener(new ItemClickListener() {
             public void onItemClick(Cell cell) {
                 if (Atlas.MIME_TYPE_ATLAS_LOCATION.equals(cell.messagePart.getMimeType())) {
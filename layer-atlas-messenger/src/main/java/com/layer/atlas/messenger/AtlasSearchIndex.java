@@ -0,0 +1,596 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.layer.atlas.Atlas;
+import com.layer.atlas.AtlasTextIndex;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.LayerObject;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+
+/**
+ * Search index over text parts of all conversations. Index lives in memory and is saved into a compact
+ * file: sorted terms with delta-encoded postings, read back in a single sequential pass. At start index is
+ * backfilled with messages missing in it, one conversation at a time, and then kept up to date from
+ * {@link LayerChangeEvent}s, so queries never go through LayerClient. <p>
+ *
+ * Index is touched on its own worker thread only. Results are delivered on the main thread
+ */
+public class AtlasSearchIndex implements LayerChangeEventListener.MainThread {
+    private static final String TAG = AtlasSearchIndex.class.getSimpleName();
+    private static final boolean debug = false;
+
+    private static final String FILE_NAME = "atlas_search.idx";
+    private static final int FILE_MAGIC = 0x41534958;      // "ASIX"
+    private static final int FILE_VERSION = 1;
+    /** changes are saved when index is not changed for this long */
+    private static final long SAVE_DELAY_MS = 5000;
+
+    private final LayerClient client;
+    private final File file;
+    private final Handler worker;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // everything below is accessed on worker thread only
+    /** user the index is built for. null until {@link #start()} */
+    private String userId;
+    /** conversations of docs. Docs refer them by index */
+    private final ArrayList<String> conversations = new ArrayList<String>();
+    private final HashMap<String, Integer> conversationIdx = new HashMap<String, Integer>();
+    /** indexed messages. Deleted ones stay in place until index is compacted on save */
+    private final ArrayList<Doc> docs = new ArrayList<Doc>();
+    private final HashMap<String, Integer> docByMessage = new HashMap<String, Integer>();
+    /** term -> docs containing it, ascending */
+    private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+    private int deletedDocs = 0;
+    /** conversations to be backfilled */
+    private final LinkedList<Conversation> backfillQueue = new LinkedList<Conversation>();
+
+    public AtlasSearchIndex(Context context, LayerClient client) {
+        if (client == null) throw new IllegalArgumentException("LayerClient cannot be null");
+        this.client = client;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.worker = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Loads index of authenticated user from disk and indexes messages missing in it. Call when LayerClient
+     * is authenticated. Does nothing if index is started for the same user already
+     */
+    public void start() {
+        final String authenticatedUserId = client.getAuthenticatedUserId();
+        if (authenticatedUserId == null) throw new IllegalStateException("LayerClient is not authenticated yet");
+        worker.post(new Runnable() {
+            public void run() {
+                if (authenticatedUserId.equals(userId)) return;
+                long started = System.currentTimeMillis();
+                reset();
+                if (!load(authenticatedUserId)) reset();
+                userId = authenticatedUserId;
+                if (debug) Log.w(TAG, "start() loaded docs: " + docs.size() + ", terms: " + terms.size() + " in " + (System.currentTimeMillis() - started) + " ms");
+
+                backfillQueue.addAll(client.getConversations());
+                worker.post(BACKFILL);
+            }
+        });
+    }
+
+    /** Drops index and its file, i.e. when user is logged out */
+    public void clear() {
+        worker.post(new Runnable() {
+            public void run() {
+                worker.removeCallbacks(SAVE);
+                worker.removeCallbacks(BACKFILL);
+                reset();
+                userId = null;
+                if (file.exists() && !file.delete()) Log.e(TAG, "clear() cannot delete " + file);
+            }
+        });
+    }
+
+    /** Called on main thread with results of {@link AtlasSearchIndex#search(String, int, SearchListener)} */
+    public interface SearchListener {
+        void onSearchResults(String query, SearchResult result);
+    }
+
+    /**
+     * Finds messages containing all words of query, each word is matched as a prefix. Messages with more
+     * words matched as a whole are ranked higher, newer ones go first among equal. Conversations are ranked
+     * by their best message
+     *
+     * @param maxMessages - number of message hits to return. Conversation hits are not limited
+     */
+    public void search(final String query, final int maxMessages, final SearchListener listener) {
+        if (listener == null) throw new IllegalArgumentException("SearchListener cannot be null");
+        worker.post(new Runnable() {
+            public void run() {
+                long started = System.currentTimeMillis();
+                final SearchResult result = find(query, maxMessages);
+                if (debug) Log.w(TAG, "search() query: " + query + ", conversations: " + result.conversations.size()
+                        + ", messages: " + result.messages.size() + " in " + (System.currentTimeMillis() - started) + " ms");
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        listener.onSearchResults(query, result);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onEventMainThread(LayerChangeEvent event) {
+        final List<LayerChange> changes = event.getChanges();
+        worker.post(new Runnable() {
+            public void run() {
+                if (userId == null) return;     // not started, backfill will catch up
+                boolean changed = false;
+                for (LayerChange change : changes) {
+                    if (change.getObjectType() == LayerObject.Type.MESSAGE) {
+                        Message msg = (Message) change.getObject();
+                        if (change.getChangeType() == LayerChange.Type.DELETE) {
+                            changed |= removeDoc(msg.getId().toString());
+                        } else if (change.getChangeType() == LayerChange.Type.INSERT) {
+                            changed |= addDoc(msg);
+                        } else if (change.getChangeType() == LayerChange.Type.UPDATE) {
+                            // text is immutable, so only messages skipped while their text was downloading are indexed
+                            if (!docByMessage.containsKey(msg.getId().toString())) changed |= addDoc(msg);
+                        }
+                    } else if (change.getObjectType() == LayerObject.Type.CONVERSATION) {
+                        Conversation conv = (Conversation) change.getObject();
+                        if (change.getChangeType() == LayerChange.Type.DELETE) {
+                            changed |= removeConversation(conv.getId().toString());
+                        }
+                    }
+                }
+                if (changed) scheduleSave();
+            }
+        });
+    }
+
+    /** Indexes one conversation per run, so searches are not blocked by backfill */
+    private final Runnable BACKFILL = new Runnable() {
+        public void run() {
+            Conversation conv = backfillQueue.poll();
+            if (conv == null) return;
+            int added = 0;
+            for (Uri msgId : client.getMessageIds(conv)) {
+                if (docByMessage.containsKey(msgId.toString())) continue;
+                Message msg = client.getMessage(msgId);
+                if (msg == null) continue;
+                if (addDoc(msg)) added++;
+            }
+            if (debug) Log.w(TAG, "BACKFILL conversation: " + conv.getId() + ", added: " + added + ", left: " + backfillQueue.size());
+            if (added > 0) scheduleSave();
+            if (!backfillQueue.isEmpty()) worker.post(BACKFILL);
+        }
+    };
+
+    private final Runnable SAVE = new Runnable() {
+        public void run() {
+            long started = System.currentTimeMillis();
+            compact();
+            try {
+                save();
+            } catch (IOException e) {
+                Log.e(TAG, "save() failed", e);
+            }
+            if (debug) Log.w(TAG, "SAVE docs: " + docs.size() + ", terms: " + terms.size() + ", bytes: " + file.length() + " in " + (System.currentTimeMillis() - started) + " ms");
+        }
+    };
+
+    private void scheduleSave() {
+        worker.removeCallbacks(SAVE);
+        worker.postDelayed(SAVE, SAVE_DELAY_MS);
+    }
+
+    private void reset() {
+        conversations.clear();
+        conversationIdx.clear();
+        docs.clear();
+        docByMessage.clear();
+        terms.clear();
+        deletedDocs = 0;
+        backfillQueue.clear();
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    // index
+
+    /**
+     * Indexes text parts of message. Message indexed before is replaced. Message with text not downloaded
+     * yet is skipped, it is indexed by UPDATE change once text is there, or by the next backfill
+     *
+     * @return true if message is indexed
+     */
+    private boolean addDoc(Message msg) {
+        StringBuilder text = new StringBuilder();
+        for (MessagePart part : msg.getMessageParts()) {
+            if (!Atlas.MIME_TYPE_TEXT.equals(part.getMimeType())) continue;
+            if (!part.isContentReady()) return false;
+            text.append(new String(part.getData())).append('\n');
+        }
+        String messageId = msg.getId().toString();
+        removeDoc(messageId);
+        Set<String> words = AtlasTextIndex.tokenize(text.toString());
+
+        int docId = docs.size();
+        long sentAt = msg.getSentAt() != null ? msg.getSentAt().getTime() : System.currentTimeMillis();
+        docs.add(new Doc(messageId, conversationIdxOf(msg.getConversation().getId().toString()), sentAt));
+        docByMessage.put(messageId, docId);
+        for (String word : words) {
+            Postings postings = terms.get(word);
+            if (postings == null) terms.put(word, postings = new Postings());
+            postings.add(docId);
+        }
+        return true;
+    }
+
+    /** @return true if message was indexed */
+    private boolean removeDoc(String messageId) {
+        Integer docId = docByMessage.remove(messageId);
+        if (docId == null) return false;
+        docs.get(docId).deleted = true;
+        deletedDocs++;
+        return true;
+    }
+
+    private boolean removeConversation(String conversationId) {
+        Integer convIdx = conversationIdx.get(conversationId);
+        if (convIdx == null) return false;
+        boolean removed = false;
+        for (Doc doc : docs) {
+            if (doc.conversation == convIdx && !doc.deleted) removed |= removeDoc(doc.messageId);
+        }
+        return removed;
+    }
+
+    private int conversationIdxOf(String conversationId) {
+        Integer idx = conversationIdx.get(conversationId);
+        if (idx != null) return idx;
+        conversations.add(conversationId);
+        conversationIdx.put(conversationId, conversations.size() - 1);
+        return conversations.size() - 1;
+    }
+
+    /** Drops deleted docs, renumbers the rest and drops terms left without docs */
+    private void compact() {
+        if (deletedDocs == 0) return;
+        int[] newIds = new int[docs.size()];
+        ArrayList<Doc> liveDocs = new ArrayList<Doc>(docs.size() - deletedDocs);
+        docByMessage.clear();
+        for (int i = 0; i < docs.size(); i++) {
+            Doc doc = docs.get(i);
+            if (doc.deleted) {
+                newIds[i] = -1;
+                continue;
+            }
+            newIds[i] = liveDocs.size();
+            docByMessage.put(doc.messageId, liveDocs.size());
+            liveDocs.add(doc);
+        }
+        for (Iterator<Postings> it = terms.values().iterator(); it.hasNext();) {
+            Postings postings = it.next();
+            postings.remap(newIds);
+            if (postings.size == 0) it.remove();
+        }
+        docs.clear();
+        docs.addAll(liveDocs);
+        deletedDocs = 0;
+    }
+
+    private SearchResult find(String query, int maxMessages) {
+        Set<String> words = AtlasTextIndex.tokenize(query);
+        if (userId == null || words.isEmpty()) {
+            return new SearchResult(new ArrayList<ConversationHit>(), new ArrayList<MessageHit>());
+        }
+
+        // docId -> {words matched so far, words matched as a whole}. Doc missing any word is dropped
+        HashMap<Integer, int[]> matches = new HashMap<Integer, int[]>();
+        int wordIdx = 0;
+        for (String word : words) {
+            for (Map.Entry<String, Postings> entry : terms.subMap(word, word + Character.MAX_VALUE).entrySet()) {
+                boolean whole = entry.getKey().equals(word);
+                Postings postings = entry.getValue();
+                for (int i = 0; i < postings.size; i++) {
+                    int docId = postings.docs[i];
+                    if (docs.get(docId).deleted) continue;
+                    int[] match = matches.get(docId);
+                    if (match == null) {
+                        if (wordIdx > 0) continue;
+                        matches.put(docId, match = new int[2]);
+                    }
+                    if (match[0] < wordIdx) continue;
+                    match[0] = wordIdx + 1;
+                    if (whole) match[1]++;
+                }
+            }
+            wordIdx++;
+        }
+
+        ArrayList<MessageHit> messageHits = new ArrayList<MessageHit>();
+        HashMap<Integer, ConversationHit> conversationHits = new HashMap<Integer, ConversationHit>();
+        for (Map.Entry<Integer, int[]> entry : matches.entrySet()) {
+            int[] match = entry.getValue();
+            if (match[0] != words.size()) continue;
+            Doc doc = docs.get(entry.getKey());
+            String conversationId = conversations.get(doc.conversation);
+            messageHits.add(new MessageHit(Uri.parse(doc.messageId), Uri.parse(conversationId), doc.sentAt, match[1]));
+
+            ConversationHit convHit = conversationHits.get(doc.conversation);
+            if (convHit == null) {
+                conversationHits.put(doc.conversation, new ConversationHit(Uri.parse(conversationId), 1, match[1], doc.sentAt));
+            } else {
+                conversationHits.put(doc.conversation, new ConversationHit(convHit.conversationId, convHit.hits + 1,
+                        Math.max(convHit.bestScore, match[1]), Math.max(convHit.latestHitAt, doc.sentAt)));
+            }
+        }
+
+        Collections.sort(messageHits, new Comparator<MessageHit>() {
+            public int compare(MessageHit lhs, MessageHit rhs) {
+                if (lhs.score != rhs.score) return rhs.score - lhs.score;
+                return rhs.sentAt < lhs.sentAt ? -1 : (rhs.sentAt == lhs.sentAt ? 0 : 1);
+            }
+        });
+        ArrayList<ConversationHit> sortedConversations = new ArrayList<ConversationHit>(conversationHits.values());
+        Collections.sort(sortedConversations, new Comparator<ConversationHit>() {
+            public int compare(ConversationHit lhs, ConversationHit rhs) {
+                if (lhs.bestScore != rhs.bestScore) return rhs.bestScore - lhs.bestScore;
+                return rhs.latestHitAt < lhs.latestHitAt ? -1 : (rhs.latestHitAt == lhs.latestHitAt ? 0 : 1);
+            }
+        });
+        List<MessageHit> limited = messageHits.size() > maxMessages ? messageHits.subList(0, Math.max(0, maxMessages)) : messageHits;
+        return new SearchResult(sortedConversations, new ArrayList<MessageHit>(limited));
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    // file
+
+    /**
+     * magic, version, userId, conversations, docs: (conversation, sentAt, messageId),
+     * terms: (term, postings count, delta-encoded doc ids). Numbers are varints, strings are length-prefixed UTF-8
+     */
+    private void save() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+        try {
+            out.writeInt(FILE_MAGIC);
+            writeVarInt(out, FILE_VERSION);
+            writeString(out, userId);
+            writeVarInt(out, conversations.size());
+            for (String conversationId : conversations) {
+                writeString(out, conversationId);
+            }
+            writeVarInt(out, docs.size());
+            for (Doc doc : docs) {
+                writeVarInt(out, doc.conversation);
+                out.writeLong(doc.sentAt);
+                writeString(out, doc.messageId);
+            }
+            writeVarInt(out, terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                writeString(out, entry.getKey());
+                Postings postings = entry.getValue();
+                writeVarInt(out, postings.size);
+                int prev = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    writeVarInt(out, postings.docs[i] - prev);
+                    prev = postings.docs[i];
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) throw new IOException("Cannot rename " + tmpFile + " to " + file);
+    }
+
+    /** @return false if there is no index of the user or file is broken */
+    private boolean load(String expectedUserId) {
+        if (!file.exists()) return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (in.readInt() != FILE_MAGIC || readVarInt(in) != FILE_VERSION) return false;
+            if (!expectedUserId.equals(readString(in))) return false;
+
+            int conversationCount = readVarInt(in);
+            for (int i = 0; i < conversationCount; i++) {
+                conversationIdxOf(readString(in));
+            }
+            int docCount = readVarInt(in);
+            for (int i = 0; i < docCount; i++) {
+                int conversation = readVarInt(in);
+                long sentAt = in.readLong();
+                String messageId = readString(in);
+                docByMessage.put(messageId, docs.size());
+                docs.add(new Doc(messageId, conversation, sentAt));
+            }
+            int termCount = readVarInt(in);
+            for (int i = 0; i < termCount; i++) {
+                String term = readString(in);
+                int size = readVarInt(in);
+                Postings postings = new Postings(size);
+                int docId = 0;
+                for (int j = 0; j < size; j++) {
+                    docId += readVarInt(in);
+                    postings.add(docId);
+                }
+                terms.put(term, postings);
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "load() index is broken, rebuilding: " + file, e);
+            return false;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    // ----------------------------------------------------------------------------------------------
+    // results
+
+    public static class SearchResult {
+        /** ranked conversations with at least one message hit */
+        public final List<ConversationHit> conversations;
+        /** ranked messages, up to maxMessages */
+        public final List<MessageHit> messages;
+
+        SearchResult(List<ConversationHit> conversations, List<MessageHit> messages) {
+            this.conversations = Collections.unmodifiableList(conversations);
+            this.messages = Collections.unmodifiableList(messages);
+        }
+    }
+
+    public static class MessageHit {
+        public final Uri messageId;
+        public final Uri conversationId;
+        public final long sentAt;
+        /** number of query words matched as a whole */
+        public final int score;
+
+        MessageHit(Uri messageId, Uri conversationId, long sentAt, int score) {
+            this.messageId = messageId;
+            this.conversationId = conversationId;
+            this.sentAt = sentAt;
+            this.score = score;
+        }
+    }
+
+    public static class ConversationHit {
+        public final Uri conversationId;
+        /** number of messages matched */
+        public final int hits;
+        /** score of the best message */
+        public final int bestScore;
+        public final long latestHitAt;
+
+        ConversationHit(Uri conversationId, int hits, int bestScore, long latestHitAt) {
+            this.conversationId = conversationId;
+            this.hits = hits;
+            this.bestScore = bestScore;
+            this.latestHitAt = latestHitAt;
+        }
+    }
+
+    private static final class Doc {
+        final String messageId;
+        final int conversation;
+        final long sentAt;
+        boolean deleted;
+
+        Doc(String messageId, int conversation, long sentAt) {
+            this.messageId = messageId;
+            this.conversation = conversation;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /** Growable array of ascending doc ids */
+    private static final class Postings {
+        int[] docs;
+        int size = 0;
+
+        Postings() {
+            this(4);
+        }
+
+        Postings(int capacity) {
+            docs = new int[Math.max(1, capacity)];
+        }
+
+        void add(int docId) {
+            if (size == docs.length) {
+                int[] grown = new int[docs.length * 2];
+                System.arraycopy(docs, 0, grown, 0, size);
+                docs = grown;
+            }
+            docs[size++] = docId;
+        }
+
+        /** @param newIds - old id -> new one, -1 for dropped */
+        void remap(int[] newIds) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int newId = newIds[docs[i]];
+                if (newId != -1) docs[kept++] = newId;
+            }
+            size = kept;
+        }
+    }
+}
@@ -26,6 +26,8 @@ import android.widget.TextView;
 import com.layer.atlas.Atlas;
 import com.layer.atlas.Atlas.Participant;
 import com.layer.atlas.Atlas.Tools;
+import com.layer.atlas.AtlasImagePipeline;
+import com.layer.atlas.AtlasMessagesList;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.exceptions.LayerException;
 import com.layer.sdk.listeners.LayerAuthenticationListener;
@@ -93,6 +95,11 @@ public class AtlasSettingsScreen extends Activity {
         logout.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
                 app.getLayerClient().deauthenticate();
+                AtlasMessagesList.modelCache.clear();
+                Atlas.imageLoader.clear();
+                if (Atlas.imageLoader.getDiskCache() != null) Atlas.imageLoader.getDiskCache().clear();
+                AtlasImagePipeline.clearAll();
+                app.getSearchIndex().clear();
                 final Intent data = new Intent();
                 data.putExtra(EXTRA_FORCE_LOGOUT, true);
                 setResult(RESULT_OK, data);
@@ -51,6 +51,7 @@ public class MessengerApp extends Application {
 
     private LayerClient layerClient;
     private AtlasIdentityProvider identityProvider;
+    private AtlasSearchIndex searchIndex;
     private String appId = LAYER_APP_ID;
 
     public interface keys {
@@ -96,6 +97,8 @@ public class MessengerApp extends Application {
 
         setAppId(appIdString);
         layerClient = client;
+        searchIndex = new AtlasSearchIndex(this, client);
+        client.registerEventListener(searchIndex);
 
         if (!client.isAuthenticated()) client.authenticate();
         else if (!client.isConnected()) client.connect();
@@ -114,6 +117,11 @@ public class MessengerApp extends Application {
         return identityProvider;
     }
 
+    /** @return index of all conversations. null until LayerClient is initialized */
+    public AtlasSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
     public void setAppId(String appId) {
         this.appId = appId;
         getSharedPreferences("app", MODE_PRIVATE).edit().putString("appId", appId).commit();
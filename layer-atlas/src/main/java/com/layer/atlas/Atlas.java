@@ -31,9 +31,14 @@ import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -42,17 +47,29 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Movie;
 import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.PorterDuff.Mode;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
@@ -66,6 +83,7 @@ import com.layer.atlas.cells.GIFCell;
 import com.layer.atlas.cells.GeoCell;
 import com.layer.atlas.cells.ImageCell;
 import com.layer.sdk.LayerClient;
+import com.layer.sdk.listeners.LayerProgressListener;
 import com.layer.sdk.messaging.Conversation;
 import com.layer.sdk.messaging.Message;
 import com.layer.sdk.messaging.MessagePart;
@@ -90,11 +108,18 @@ public class Atlas {
     public static final String MIME_TYPE_IMAGE_GIF = "image/gif";
     public static final String MIME_TYPE_IMAGE_GIF_PREVIEW = "image/gif+preview";
     public static final String MIME_TYPE_IMAGE_DIMENSIONS = "application/json+imageSize";
+    
+    /** preview built by {@link #buildPreviewAndSize(File, LayerClient, File)} is scaled to have its bigger side of this size */
+    public static final int PREVIEW_MAX_DIMENSION = 512;
 
     public static final ImageLoader imageLoader = new ImageLoader();
 
     public static final Atlas.DownloadQueue downloadQueue = new DownloadQueue();
 
+    public static final AvatarCache avatarCache = new AvatarCache();
+
+    public static final GIFAnimator gifAnimator = new GIFAnimator();
+
     public static String getInitials(Participant p) {
         StringBuilder sb = new StringBuilder();
         sb.append(p.getFirstName() != null && p.getFirstName().trim().length() > 0 ? p.getFirstName().trim().charAt(0) : "");
@@ -168,8 +193,8 @@ public class Atlas {
         //BitmapFactory.decodeFile(photoFile.getAbsolutePath(), optOriginal);
         BitmapFactory.decodeStream(new FileInputStream(imageFile), null, optOriginal);
         if (debug) Log.w(TAG, "buildPreviewAndSize() original: " + optOriginal.outWidth + "x" + optOriginal.outHeight);
-        int previewWidthMax = 512;
-        int previewHeightMax = 512;
+        int previewWidthMax = PREVIEW_MAX_DIMENSION;
+        int previewHeightMax = PREVIEW_MAX_DIMENSION;
         int previewWidth;
         int previewHeight;
         int sampleSize;
@@ -629,136 +654,294 @@ public class Atlas {
         private static final boolean debug = false;
         
         private static final int BITMAP_DECODE_RETRIES = 10;
-        private static final double MEMORY_THRESHOLD = 0.7;
+        /** decoded images take 1/8 of app's heap by default. See {@link #attach(Context)} */
+        private static final int HEAP_SHARE_DIVIDER = 8;
+        /** used until {@link #attach(Context)} is called */
+        public static final int DEFAULT_MAX_BYTES = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_SHARE_DIVIDER);
+        /** invisible requests kept waiting in case their images are shown again. Older ones are cancelled */
+        public static final int MAX_HIDDEN_REQUESTS = 12;
+        /** decoding threads by default: cores left after the main thread, up to 4 */
+        public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
         
         private volatile boolean shutdownLoader = false;
-        private final Thread processingThread;
+        private final Decoder[] decoders;
         private final Object lock = new Object();
-        private final ArrayList<ImageSpec> queue = new ArrayList<ImageSpec>();
-        
-        /** image_id -> Bitmap | Movie */
-        private LinkedHashMap<Object, Object> cache = new LinkedHashMap<Object, Object>(40, 1f, true) {
-            private static final long serialVersionUID = 1L;
-            protected boolean removeEldestEntry(Entry<Object, Object> eldest) {
-                // calculate available memory
-                long maxMemory = Runtime.getRuntime().maxMemory();
-                long usedMemory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-                boolean cleaningRequired = 1.0 * usedMemory / maxMemory > MEMORY_THRESHOLD; 
-                
-                final Object id = eldest.getKey();
-                if (cleaningRequired) if (debug) Log.w(TAG, "removeEldestEntry() cleaning bitmap for: " + id + ", size: " + cache.size() + ", queue: " + queue.size());
-                else                  if (debug) Log.w(TAG, "removeEldestEntry() " + " nothing, size: " + cache.size() + ", queue: " + queue.size());                    
-    
-                return cleaningRequired;
-            }
-        };
+        
+        /** id -> spec waiting to be decoded. Lookup to merge repeated requests */
+        private final HashMap<Object, ImageSpec> requests = new HashMap<Object, ImageSpec>();
+        /** id -> spec being decoded */
+        private final HashMap<Object, ImageSpec> decoding = new HashMap<Object, ImageSpec>();
+        /** 
+         * Decoding order: visible first, most recently requested first among them. Spec is queued again 
+         * when its priority changes, entries left behind are skipped as stale 
+         */
+        private final PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>(16, QUEUE_PRIORITY);
+        /** specs not ready to be decoded when picked. They are queued again as soon as their providers report readiness */
+        private final LinkedHashSet<ImageSpec> waiting = new LinkedHashSet<ImageSpec>();
+        private long requestSeq = 0;
+        
+        /** image_id -> CacheEntry with Bitmap | Movie, access ordered. Guarded by lock */
+        private final LinkedHashMap<Object, CacheEntry> cache = new LinkedHashMap<Object, CacheEntry>(40, 1f, true);
+        private int maxBytes = DEFAULT_MAX_BYTES;
+        private int sizeBytes = 0;
+        private boolean attached = false;
+        /** second level for downsampled bitmaps. Set by {@link #attach(Context)} unless set before */
+        private volatile AtlasThumbnailCache diskCache;
+        /** evicted bitmaps to decode into */
+        private final BitmapPool bitmapPool = new BitmapPool();
+        /** ids of cached images views could still display. Evicted bitmaps go to the pool only if they are not here. Guarded by lock */
+        private final HashSet<Object> shown = new HashSet<Object>();
+        /** ids of images being stored to disk cache */
+        private final HashSet<Object> pinned = new HashSet<Object>();
+        
+        // counters
+        private int hits = 0;
+        private int misses = 0;
+        private int evictions = 0;
     
         public ImageLoader() {
-            // launching thread
-            processingThread = new Decoder("AtlasImageLoader"); 
-            processingThread.start();
+            this(DEFAULT_THREADS);
+        }
+        
+        /** @param threads - number of images decoded in parallel */
+        public ImageLoader(int threads) {
+            if (threads < 1) throw new IllegalArgumentException("threads must be positive: " + threads);
+            // launching threads
+            decoders = new Decoder[threads];
+            for (int i = 0; i < threads; i++) {
+                decoders[i] = new Decoder("AtlasImageLoader-" + i);
+                decoders[i].start();
+            }
         }
         
         private final class Decoder extends Thread {
             public Decoder(String threadName) {
                 super(threadName);
+                setPriority(Thread.NORM_PRIORITY - 1);
             }
             public void run() {
                 if (debug) Log.w(TAG, "ImageLoader.run() started");
+                ArrayList<ImageSpec> notReady = new ArrayList<ImageSpec>();
                 while (!shutdownLoader) {
-   
-                    ImageSpec spec = null;
-                    // search bitmap ready to inflate
-                    // wait for queue
-                    synchronized (lock) {
-                        while (spec == null && !shutdownLoader) {
-                            try {
-                                lock.wait();
-                                if (shutdownLoader) return;
-                                // picking from queue
-                                for (int i = 0; i < queue.size(); i++) {
-                                    if (queue.get(i).inputStreamProvider.ready()) { // ready to inflate
-                                        spec = queue.remove(i);
-                                        break;
-                                    }
-                                }
-                            } catch (InterruptedException e) {}
-                        }
+                    ImageSpec spec;
+                    try {
+                        spec = takeReady(notReady);
+                    } catch (InterruptedException e) {
+                        continue;
                     }
-                    
-                    Object result = null;
-                    if (spec.gif) {
-                        InputStream is = spec.inputStreamProvider.getInputStream();
-                        Movie mov = Movie.decodeStream(is);
-                        if (debug) Log.w(TAG, "decodeImage() decoded GIF " + mov.width() + "x" + mov.height() + ":" + mov.duration() + "ms");
-                        Tools.closeQuietly(is);
-                        result = mov;
-                    } else {
-                        // decode dimensions
-                        long started = System.currentTimeMillis();
-                        InputStream streamForBounds = spec.inputStreamProvider.getInputStream();
-                        if (streamForBounds == null) { 
-                            Log.e(TAG, "decodeImage() stream is null! Request cancelled. Spec: " + spec.id + ", provider: " + spec.inputStreamProvider.getClass().getSimpleName()); return; 
-                        }
-                        BitmapFactory.Options originalOpts = new BitmapFactory.Options();
-                        originalOpts.inJustDecodeBounds = true;
-                        BitmapFactory.decodeStream(streamForBounds, null, originalOpts);
-                        Tools.closeQuietly(streamForBounds);
-                        // update spec if width and height are unknown
-                        spec.originalWidth = originalOpts.outWidth;
-                        spec.originalHeight = originalOpts.outHeight;
-                        
-                        // if required dimensions are not defined or bigger than original - use original dimensions
-                        int requiredWidth  = spec.requiredWidth  > 0 ? Math.min(spec.requiredWidth,  originalOpts.outWidth)  : originalOpts.outWidth;
-                        int requiredHeight = spec.requiredHeight > 0 ? Math.min(spec.requiredHeight, originalOpts.outHeight) : originalOpts.outHeight;
-                        int sampleSize = 1;
-                        // Use dimension with higher quality to meet both requirements
-                        float widthSampleSize  = sampleSize(originalOpts.outWidth,  requiredWidth);
-                        float heightSampleSize = sampleSize(originalOpts.outHeight, requiredHeight);
-                        sampleSize = (int)Math.min(widthSampleSize, heightSampleSize);
-                        if (debug) Log.w(TAG, "decodeImage() sampleSize: " + sampleSize + ", original: " + spec.originalWidth + "x" + spec.originalHeight
-                                + " required: " + spec.requiredWidth + "x" + spec.requiredHeight);
-                        
-                        BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
-                        decodeOpts.inSampleSize = sampleSize;
-                        Bitmap bmp = null;
-                        InputStream streamForBitmap = spec.inputStreamProvider.getInputStream();
-                        try {
-                            bmp = BitmapFactory.decodeStream(streamForBitmap, null, decodeOpts);
-                        } catch (OutOfMemoryError e) {
-                            if (debug) Log.w(TAG, "decodeImage() out of memory. remove eldest");
-                            removeEldest();
-                            System.gc();
-                        }
-                        Tools.closeQuietly(streamForBitmap);
-                        if (bmp != null) {
-                            if (debug) Log.d(TAG, "decodeImage() decoded " + bmp.getWidth() + "x" + bmp.getHeight() 
-                                    + " " + bmp.getByteCount() + " bytes" 
-                                    + " req: " + spec.requiredWidth + "x" + spec.requiredHeight 
-                                    + " original: " + originalOpts.outWidth + "x" + originalOpts.outHeight 
-                                    + " sampleSize: " + sampleSize
-                                    + " in " +(System.currentTimeMillis() - started) + "ms from: " + spec.id);
-                        } else {
-                            if (debug) Log.d(TAG, "decodeImage() not decoded " + " req: " + requiredWidth + "x" + requiredHeight 
-                                    + " in " +(System.currentTimeMillis() - started) + "ms from: " + spec.id);
-                        }
-                        result = bmp;
+                    // subscribed outside of lock, as providers call into SDK
+                    for (ImageSpec waitingSpec : notReady) {
+                        InputStreamProvider provider = waitingSpec.inputStreamProvider;
+                        provider.waitForReady(readyListener);
+                        if (provider.ready()) readyListener.onReady(provider);  // got ready before subscription
                     }
+                    notReady.clear();
+                    if (spec == null) continue;
+                    
+                    Object result = decodeImage(spec);
    
                     // decoded
+                    ImageLoadListener listener = null;
                     synchronized (lock) {
+                        decoding.remove(spec.id);
                         if (result != null) {
-                            cache.put(spec.id, result);
-                            if (spec.listener != null) spec.listener.onImageLoaded(spec);
-                        } else if (spec.retries < BITMAP_DECODE_RETRIES) {
+                            cachePut(spec.id, result, byteCountOf(result, spec));
+                            listener = spec.listener;
+                        } else if (spec.retries < BITMAP_DECODE_RETRIES && !spec.cancelled && !requests.containsKey(spec.id)) {
                             spec.retries++;
-                            queue.add(0, spec);         // schedule retry
+                            enqueue(spec);          // schedule retry
                             lock.notifyAll();
                         } /*else forget about this image, never put it back in queue */
                     }
+                    if (listener != null) listener.onImageLoaded(spec);
+                    
+                    // stored after listener is notified, so image is displayed without waiting for disk
+                    AtlasThumbnailCache thumbnails = diskCache;
+                    if (thumbnails != null && spec.sampleSize > 1 && result instanceof Bitmap) {
+                        synchronized (lock) {
+                            pinned.add(spec.id);
+                        }
+                        thumbnails.put(spec.id, spec.requiredWidth, spec.requiredHeight, (Bitmap) result, spec.originalWidth, spec.originalHeight);
+                        synchronized (lock) {
+                            pinned.remove(spec.id);
+                        }
+                    }
    
-                    if (debug) Log.w(TAG, "decodeImage()   cache: " + cache.size() + ", queue: " + queue.size() + ", id: " + spec.id);
+                    if (debug) Log.w(TAG, "decodeImage()   cache: " + cache.size() + ", queue: " + requests.size() + ", id: " + spec.id);
+                }
+            }
+        }
+        
+        /** 
+         * Blocks until there is a spec to decode or specs not ready yet are met 
+         * 
+         * @param notReady - specs met not ready. Caller must subscribe for their readiness
+         * @return the most prioritized spec ready to be decoded. null if there are only not ready specs or loader is shut down 
+         */
+        private ImageSpec takeReady(List<ImageSpec> notReady) throws InterruptedException {
+            synchronized (lock) {
+                while (!shutdownLoader) {
+                    QueueEntry entry;
+                    while ((entry = queue.poll()) != null) {
+                        ImageSpec spec = entry.spec;
+                        if (entry.isStale() || waiting.contains(spec)) continue;
+                        if (!spec.inputStreamProvider.ready()) {
+                            waiting.add(spec);
+                            notReady.add(spec);
+                            continue;
+                        }
+                        requests.remove(spec.id);
+                        decoding.put(spec.id, spec);
+                        return spec;
+                    }
+                    if (!notReady.isEmpty()) return null;
+                    lock.wait();
+                }
+                return null;
+            }
+        }
+        
+        /** Queues specs waiting for the provider */
+        private final InputStreamProvider.ReadyListener readyListener = new InputStreamProvider.ReadyListener() {
+            public void onReady(InputStreamProvider provider) {
+                synchronized (lock) {
+                    for (Iterator<ImageSpec> it = waiting.iterator(); it.hasNext();) {
+                        ImageSpec spec = it.next();
+                        if (spec.inputStreamProvider != provider) continue;
+                        it.remove();
+                        if (requests.get(spec.id) == spec) queue.add(new QueueEntry(spec));
+                        if (debug) Log.w(TAG, "onReady() id: " + spec.id + ", waiting: " + waiting.size());
+                    }
+                    lock.notifyAll();
+                }
+            }
+        };
+        
+        /** Queues spec with the highest priority among specs of the same visibility. Must be called under lock */
+        private void enqueue(ImageSpec spec) {
+            spec.requestSeq = ++requestSeq;
+            requests.put(spec.id, spec);
+            queue.add(new QueueEntry(spec));
+            // drop stale entries if they outnumber live ones
+            if (queue.size() > 64 + 4 * requests.size()) {
+                ArrayList<QueueEntry> live = new ArrayList<QueueEntry>(requests.size());
+                for (QueueEntry entry : queue) {
+                    if (!entry.isStale()) live.add(entry);
+                }
+                queue.clear();
+                queue.addAll(live);
+            }
+        }
+        
+        private Object decodeImage(ImageSpec spec) {
+            Object result = null;
+            if (spec.gif) {
+                InputStream is = spec.inputStreamProvider.getInputStream();
+                Movie mov = Movie.decodeStream(is);
+                if (debug) Log.w(TAG, "decodeImage() decoded GIF " + mov.width() + "x" + mov.height() + ":" + mov.duration() + "ms");
+                Tools.closeQuietly(is);
+                result = mov;
+            } else {
+                long started = System.currentTimeMillis();
+                // downsampled before?
+                AtlasThumbnailCache thumbnails = diskCache;
+                if (thumbnails != null && spec.requiredWidth > 0 && spec.requiredHeight > 0) {
+                    AtlasThumbnailCache.Thumbnail thumb = thumbnails.get(spec.id, spec.requiredWidth, spec.requiredHeight);
+                    if (thumb != null) {
+                        spec.originalWidth = thumb.originalWidth;
+                        spec.originalHeight = thumb.originalHeight;
+                        spec.sampleSize = 1;
+                        if (debug) Log.d(TAG, "decodeImage() thumbnail " + thumb.bitmap.getWidth() + "x" + thumb.bitmap.getHeight() 
+                                + " in " + (System.currentTimeMillis() - started) + "ms from: " + spec.id);
+                        return thumb.bitmap;
+                    }
+                }
+                BitmapFactory.Options originalOpts = new BitmapFactory.Options();
+                if (spec.originalWidth > 0 && spec.originalHeight > 0) {
+                    // declared by requester, no need to read stream twice
+                    originalOpts.outWidth = spec.originalWidth;
+                    originalOpts.outHeight = spec.originalHeight;
+                    originalOpts.outMimeType = spec.inputStreamProvider.getMimeType();
+                } else {
+                    // decode dimensions
+                    InputStream streamForBounds = spec.inputStreamProvider.getInputStream();
+                    if (streamForBounds == null) { 
+                        Log.e(TAG, "decodeImage() stream is null! Spec: " + spec.id + ", provider: " + spec.inputStreamProvider.getClass().getSimpleName()); 
+                        return null; 
+                    }
+                    originalOpts.inJustDecodeBounds = true;
+                    BitmapFactory.decodeStream(streamForBounds, null, originalOpts);
+                    Tools.closeQuietly(streamForBounds);
+                    // update spec if width and height are unknown
+                    spec.originalWidth = originalOpts.outWidth;
+                    spec.originalHeight = originalOpts.outHeight;
+                }
+                
+                // if required dimensions are not defined or bigger than original - use original dimensions
+                int requiredWidth  = spec.requiredWidth  > 0 ? Math.min(spec.requiredWidth,  originalOpts.outWidth)  : originalOpts.outWidth;
+                int requiredHeight = spec.requiredHeight > 0 ? Math.min(spec.requiredHeight, originalOpts.outHeight) : originalOpts.outHeight;
+                int sampleSize = 1;
+                // Use dimension with higher quality to meet both requirements
+                float widthSampleSize  = sampleSize(originalOpts.outWidth,  requiredWidth);
+                float heightSampleSize = sampleSize(originalOpts.outHeight, requiredHeight);
+                sampleSize = (int)Math.min(widthSampleSize, heightSampleSize);
+                spec.sampleSize = sampleSize;
+                if (debug) Log.w(TAG, "decodeImage() sampleSize: " + sampleSize + ", original: " + spec.originalWidth + "x" + spec.originalHeight
+                        + " required: " + spec.requiredWidth + "x" + spec.requiredHeight);
+                
+                BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
+                decodeOpts.inSampleSize = sampleSize;
+                decodeOpts.inMutable = true;        // to be reusable when evicted
+                Bitmap reusable = bitmapPool.obtain(originalOpts.outWidth, originalOpts.outHeight, originalOpts.outMimeType, sampleSize);
+                decodeOpts.inBitmap = reusable;
+                spec.allocationBytes = reusable != null ? reusable.getByteCount() : 0;
+                Bitmap bmp = null;
+                InputStream streamForBitmap = spec.inputStreamProvider.getInputStream();
+                if (streamForBitmap == null) {
+                    Log.e(TAG, "decodeImage() stream is null! Spec: " + spec.id + ", provider: " + spec.inputStreamProvider.getClass().getSimpleName()); 
+                    if (reusable != null) bitmapPool.put(reusable, spec.allocationBytes);
+                    return null;
+                }
+                try {
+                    bmp = BitmapFactory.decodeStream(streamForBitmap, null, decodeOpts);
+                    if (bmp == null && reusable != null) bitmapPool.put(reusable, spec.allocationBytes);
+                } catch (IllegalArgumentException e) {
+                    // pooled bitmap turned out incompatible, drop it and decode into new one
+                    if (debug) Log.w(TAG, "decodeImage() cannot reuse pooled bitmap for " + spec.id, e);
+                    Tools.closeQuietly(streamForBitmap);
+                    streamForBitmap = spec.inputStreamProvider.getInputStream();
+                    decodeOpts.inBitmap = null;
+                    spec.allocationBytes = 0;
+                    try {
+                        bmp = BitmapFactory.decodeStream(streamForBitmap, null, decodeOpts);
+                    } catch (OutOfMemoryError oom) {
+                        onDecodeOutOfMemory();
+                    }
+                } catch (OutOfMemoryError e) {
+                    onDecodeOutOfMemory();
+                }
+                Tools.closeQuietly(streamForBitmap);
+                if (bmp != null) {
+                    if (debug) Log.d(TAG, "decodeImage() decoded " + bmp.getWidth() + "x" + bmp.getHeight() 
+                            + " " + bmp.getByteCount() + " bytes" 
+                            + " req: " + spec.requiredWidth + "x" + spec.requiredHeight 
+                            + " original: " + originalOpts.outWidth + "x" + originalOpts.outHeight 
+                            + " sampleSize: " + sampleSize
+                            + " in " +(System.currentTimeMillis() - started) + "ms from: " + spec.id);
+                } else {
+                    if (debug) Log.d(TAG, "decodeImage() not decoded " + " req: " + requiredWidth + "x" + requiredHeight 
+                            + " in " +(System.currentTimeMillis() - started) + "ms from: " + spec.id);
                 }
+                result = bmp;
+            }
+            return result;
+        }
+        
+        private void onDecodeOutOfMemory() {
+            if (debug) Log.w(TAG, "decodeImage() out of memory. trimming cache: " + sizeBytes + " bytes, pool: " + bitmapPool.getSizeBytes());
+            bitmapPool.clear();
+            synchronized (lock) {
+                trimToSize(sizeBytes / 2, false);
             }
         }
         
@@ -787,25 +970,166 @@ public class Atlas {
         }
     
         public Object getImageFromCache(Object id) {
-            return cache.get(id);
+            synchronized (lock) {
+                CacheEntry entry = cache.get(id);
+                if (entry == null) {
+                    misses++;
+                    return null;
+                }
+                hits++;
+                shown.add(id);
+                return entry.image;
+            }
         }
-                
+        
         /**
-         * @return - byteCount of removed bitmap if bitmap found. <bold>-1</bold> otherwise
+         * Sizes cache after device memory class and trims it when system asks for memory. 
+         * Called by Atlas views, call it yourself if loader is used without them. Only the first call counts
+         */
+        public void attach(Context context) {
+            synchronized (lock) {
+                if (attached) return;
+                attached = true;
+            }
+            Context appContext = context.getApplicationContext();
+            if (diskCache == null) {
+                diskCache = new AtlasThumbnailCache(new File(appContext.getCacheDir(), "atlas_thumbnails"));
+            }
+            ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            boolean largeHeap = (appContext.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+            int memoryClassMb = largeHeap ? activityManager.getLargeMemoryClass() : activityManager.getMemoryClass();
+            setMaxBytes(memoryClassMb * 1024 * 1024 / HEAP_SHARE_DIVIDER);
+            appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+                public void onTrimMemory(int level) {
+                    ImageLoader.this.onTrimMemory(level);
+                }
+                public void onLowMemory() {
+                    ImageLoader.this.onTrimMemory(TRIM_MEMORY_COMPLETE);
+                }
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+            });
+            if (debug) Log.w(TAG, "attach() memoryClass: " + memoryClassMb + "MB, largeHeap: " + largeHeap + ", maxBytes: " + maxBytes);
+        }
+        
+        /** 
+         * Drops everything if app is about to be killed, half of the cache if app is in background 
+         * or its UI is hidden, a quarter if memory is running low while app is in foreground 
          */
-        private int removeEldest() {
+        public void onTrimMemory(int level) {
             synchronized (lock) {
-                if (cache.size() > 0) {
-                    Map.Entry<Object, Object> entry = cache.entrySet().iterator().next();
-                    Object bmp = entry.getValue();
-                    cache.remove(entry.getKey());
-                    int releasedBytes = (bmp instanceof Bitmap) ? ((Bitmap) bmp).getByteCount() : 0; /*((Movie)bmp).byteCount(); */
-                    if (debug) Log.w(TAG, "removeEldest() id: " + entry.getKey() + ", bytes: " + releasedBytes);
-                    return releasedBytes;
+                int before = sizeBytes;
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                    trimToSize(0, false);
+                } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                    trimToSize(sizeBytes / 2, false);
                 } else {
-                    if (debug) Log.w(TAG, "removeEldest() nothing to remove...");
-                    return -1;
+                    trimToSize(sizeBytes * 3 / 4, false);
                 }
+                // nothing is decoded in background, pool is useless there
+                bitmapPool.trimToSize(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN ? 0 : bitmapPool.getSizeBytes() / 2);
+                if (debug) Log.w(TAG, "onTrimMemory() level: " + level + ", bytes: " + before + " -> " + sizeBytes);
+            }
+        }
+        
+        public void clear() {
+            synchronized (lock) {
+                trimToSize(0, false);
+                shown.clear();
+            }
+            bitmapPool.clear();
+        }
+        
+        public void setMaxBytes(int maxBytes) {
+            if (maxBytes < 0) throw new IllegalArgumentException("maxBytes cannot be negative: " + maxBytes);
+            synchronized (lock) {
+                this.maxBytes = maxBytes;
+                trimToSize(maxBytes, false);
+            }
+        }
+        
+        public int getMaxBytes() {
+            synchronized (lock) {
+                return maxBytes;
+            }
+        }
+        
+        /** @return estimated bytes taken by cached images */
+        public int getSizeBytes() {
+            synchronized (lock) {
+                return sizeBytes;
+            }
+        }
+        
+        /** @return number of {@link #getImageFromCache(Object)} calls that found image */
+        public int getHitCount() {
+            synchronized (lock) {
+                return hits;
+            }
+        }
+        
+        /** @return number of {@link #getImageFromCache(Object)} calls that found nothing */
+        public int getMissCount() {
+            synchronized (lock) {
+                return misses;
+            }
+        }
+        
+        /** @return number of images dropped to fit the budget or on memory trim */
+        public int getEvictionCount() {
+            synchronized (lock) {
+                return evictions;
+            }
+        }
+        
+        /** Must be called under lock */
+        private void cachePut(Object id, Object image, int bytes) {
+            CacheEntry previous = cache.put(id, new CacheEntry(image, bytes));
+            if (previous != null) sizeBytes -= previous.bytes;
+            sizeBytes += bytes;
+            // the latest image is kept even if it doesn't fit, otherwise it is requested again and again
+            trimToSize(Math.max(maxBytes, bytes), true);
+            if (debug) Log.w(TAG, "cachePut() id: " + id + ", bytes: " + bytes + ", size: " + cache.size() + ", total: " + sizeBytes + " of " + maxBytes);
+        }
+        
+        /** 
+         * Drops least recently used images until size fits. Must be called under lock
+         * 
+         * @param toPool - evicted bitmaps no view could display are given to {@link #getBitmapPool()} 
+         */
+        private void trimToSize(int bytesToFit, boolean toPool) {
+            for (Iterator<Map.Entry<Object, CacheEntry>> it = cache.entrySet().iterator(); sizeBytes > bytesToFit && it.hasNext();) {
+                Map.Entry<Object, CacheEntry> eldest = it.next();
+                CacheEntry entry = eldest.getValue();
+                sizeBytes -= entry.bytes;
+                evictions++;
+                it.remove();
+                // displayed image is never recycled or drawn into
+                boolean displayed = shown.remove(eldest.getKey()) || pinned.contains(eldest.getKey());
+                if (toPool && !displayed && entry.image instanceof Bitmap) bitmapPool.put((Bitmap) entry.image, entry.bytes);
+            }
+        }
+        
+        /** 
+         * Movie keeps encoded stream and draws frames into bitmap of its size, 
+         * so both are counted. Encoded size is taken from {@link InputStreamProvider#getSize()} 
+         */
+        private static int byteCountOf(Object image, ImageSpec spec) {
+            if (image instanceof Bitmap) return Math.max(((Bitmap) image).getByteCount(), spec.allocationBytes);
+            if (image instanceof Movie) {
+                Movie mov = (Movie) image;
+                long encodedBytes = Math.max(0, spec.inputStreamProvider.getSize());
+                return (int) Math.min(Integer.MAX_VALUE, 4L * mov.width() * mov.height() + encodedBytes);
+            }
+            return 0;
+        }
+        
+        private static final class CacheEntry {
+            final Object image;
+            final int bytes;
+            CacheEntry(Object image, int bytes) {
+                this.image = image;
+                this.bytes = bytes;
             }
         }
                 
@@ -830,31 +1154,208 @@ public class Atlas {
          * @param requiredHeight    - provide image dimensions you need to save memory if original dimensions are bigger
          * @param gif               - android.graphics.Movie would be decoded instead of Bitmap. <b>Warning!</b> {@link Atlas.MessagePartBufferedStreamProvider} must be used 
          * @param loadListener      - something you can use to be notified when image is loaded
+         * @return request handle. Pass its id to {@link #setVisible(Object, boolean)} when image goes off screen 
+         *         or to {@link #cancel(Object, ImageLoadListener)} when it is not needed anymore
          */
         public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, int requiredWidth, int requiredHeight, boolean gif, ImageLoader.ImageLoadListener loadListener) {
+            return requestImage(id, streamProvider, requiredWidth, requiredHeight, 0, 0, gif, loadListener);
+        }
+        
+        /** 
+         * @param originalWidth     - 
+         * @param originalHeight    - dimensions of encoded image if they are known, i.e. declared by 3-part image. 
+         *                            Image is decoded in one pass then, without reading stream for dimensions first. 
+         *                            Pass 0 if unknown
+         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, ImageLoadListener)
+         */
+        public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, int requiredWidth, int requiredHeight
+                , int originalWidth, int originalHeight, boolean gif, ImageLoader.ImageLoadListener loadListener) {
             ImageSpec spec = null;
             synchronized (lock) {
-                for (int i = 0; i < queue.size(); i++) {
-                    if (queue.get(i).id.equals(id)) {
-                        spec = queue.remove(i);
-                        break;
-                    }
+                // being decoded already, notify the latest requester
+                spec = decoding.get(id);
+                if (spec != null) {
+                    spec.listener = loadListener;
+                    spec.cancelled = false;
+                    return spec;
                 }
+                spec = requests.get(id);
                 if (spec == null) {
                     spec = new ImageSpec();
                     spec.id = id;
                     spec.inputStreamProvider = streamProvider;
                     spec.requiredHeight = requiredHeight;
                     spec.requiredWidth = requiredWidth;
-                    spec.listener = loadListener;
+                    if (originalWidth > 0 && originalHeight > 0) {
+                        spec.originalWidth = originalWidth;
+                        spec.originalHeight = originalHeight;
+                    }
                     spec.gif = gif;
                 }
-                queue.add(0, spec);
+                spec.listener = loadListener;
+                spec.visible = true;
+                // provider could have missed to report readiness
+                if (waiting.contains(spec) && spec.inputStreamProvider.ready()) waiting.remove(spec);
+                enqueue(spec);
                 lock.notifyAll();
             }
-            if (debug) Log.w(TAG, "requestBitmap() cache: " + cache.size() + ", queue: " + queue.size() + ", id: " + id + ", reqs: " + requiredWidth + "x" + requiredHeight);
+            if (debug) Log.w(TAG, "requestBitmap() cache: " + cache.size() + ", queue: " + requests.size() + ", id: " + id + ", reqs: " + requiredWidth + "x" + requiredHeight);
             return spec;
         }
+        
+        /** 
+         * Invisible images are decoded after all visible ones. Image becomes visible again when requested. 
+         * Only {@link #MAX_HIDDEN_REQUESTS} most recent invisible requests are kept, others are cancelled. 
+         * Cached bitmap of invisible image could be reused for decoding others once it is evicted, so call it 
+         * only when image is not displayed anymore
+         */
+        public void setVisible(Object id, boolean visible) {
+            synchronized (lock) {
+                if (!visible) shown.remove(id);
+                ImageSpec spec = requests.get(id);
+                if (spec == null || spec.visible == visible) return;
+                spec.visible = visible;
+                queue.add(new QueueEntry(spec));
+                if (!visible) cancelHiddenOverflow();
+                lock.notifyAll();
+            }
+        }
+        
+        /**
+         * Withdraws request made by listener. Waiting request is dropped, listener of the request being decoded 
+         * is not notified, although image still gets to the cache. Does nothing if image was requested by 
+         * another listener since then
+         * 
+         * @return true if request was waiting and is dropped now
+         */
+        public boolean cancel(Object id, ImageLoadListener listener) {
+            synchronized (lock) {
+                ImageSpec spec = decoding.get(id);
+                if (spec != null) {
+                    if (spec.listener == listener) {
+                        spec.listener = null;
+                        spec.cancelled = true;      // no retries if decoding fails
+                    }
+                    return false;
+                }
+                spec = requests.get(id);
+                if (spec == null || spec.listener != listener) return false;
+                requests.remove(id);            // its queue entries become stale
+                if (waiting.remove(spec)) spec.inputStreamProvider.stopWaiting();
+                if (debug) Log.w(TAG, "cancel() id: " + id + ", queue: " + requests.size());
+                return true;
+            }
+        }
+        
+        /** Cancels the least recently requested invisible requests above {@link #MAX_HIDDEN_REQUESTS}. Must be called under lock */
+        private void cancelHiddenOverflow() {
+            int hidden = 0;
+            for (ImageSpec spec : requests.values()) {
+                if (!spec.visible) hidden++;
+            }
+            for (; hidden > MAX_HIDDEN_REQUESTS; hidden--) {
+                ImageSpec oldest = null;
+                for (ImageSpec spec : requests.values()) {
+                    if (!spec.visible && (oldest == null || spec.requestSeq < oldest.requestSeq)) oldest = spec;
+                }
+                requests.remove(oldest.id);
+                if (waiting.remove(oldest)) oldest.inputStreamProvider.stopWaiting();
+                if (debug) Log.w(TAG, "cancelHiddenOverflow() id: " + oldest.id + ", queue: " + requests.size());
+            }
+        }
+        
+        /** @param diskCache - where downsampled bitmaps are kept between restarts. null to disable */
+        public void setDiskCache(AtlasThumbnailCache diskCache) {
+            this.diskCache = diskCache;
+        }
+        
+        public AtlasThumbnailCache getDiskCache() {
+            return diskCache;
+        }
+        
+        public BitmapPool getBitmapPool() {
+            return bitmapPool;
+        }
+        
+        public int getThreadCount() {
+            return decoders.length;
+        }
+        
+        /** @return number of images waiting to be decoded */
+        public int getQueueSize() {
+            synchronized (lock) {
+                return requests.size();
+            }
+        }
+        
+        private static final Comparator<QueueEntry> QUEUE_PRIORITY = new Comparator<QueueEntry>() {
+            public int compare(QueueEntry lhs, QueueEntry rhs) {
+                if (lhs.visible != rhs.visible) return lhs.visible ? -1 : 1;
+                return lhs.seq > rhs.seq ? -1 : (lhs.seq == rhs.seq ? 0 : 1);
+            }
+        };
+        
+        /** Position of spec in queue at the moment it is queued. Entry is stale if spec is re-queued, decoded or its visibility is changed */
+        private final class QueueEntry {
+            final ImageSpec spec;
+            final long seq;
+            final boolean visible;
+            
+            QueueEntry(ImageSpec spec) {
+                this.spec = spec;
+                this.seq = spec.requestSeq;
+                this.visible = spec.visible;
+            }
+            
+            boolean isStale() {
+                return seq != spec.requestSeq || visible != spec.visible || requests.get(spec.id) != spec;
+            }
+        }
+
+        /** smallest size bucket, see {@link #sizeBucket(int)} */
+        public static final int MIN_SIZE_BUCKET = 32;
+        
+        /** 
+         * Image decoded for views of any size up to (width, height). Use it as image id to share one bitmap 
+         * between close sizes and to keep bitmaps of different sizes for the same image apart
+         * 
+         * @param targetWidth   - 
+         * @param targetHeight  - size of view to display image in. Both are rounded up to {@link #sizeBucket(int)}
+         */
+        public static SizedId sizedId(Object id, int targetWidth, int targetHeight) {
+            return new SizedId(id, sizeBucket(targetWidth), sizeBucket(targetHeight));
+        }
+        
+        /** @return the nearest power of two not less than size and {@link #MIN_SIZE_BUCKET} */
+        public static int sizeBucket(int size) {
+            int bucket = MIN_SIZE_BUCKET;
+            while (bucket < size && bucket < (1 << 30)) bucket <<= 1;
+            return bucket;
+        }
+        
+        /** Image id with size bucket. Pass {@link #width} and {@link #height} as required size when requesting it */
+        public static final class SizedId {
+            public final Object id;
+            public final int width;
+            public final int height;
+            private SizedId(Object id, int width, int height) {
+                if (id == null) throw new IllegalArgumentException("id cannot be null");
+                this.id = id;
+                this.width = width;
+                this.height = height;
+            }
+            public boolean equals(Object o) {
+                if (!(o instanceof SizedId)) return false;
+                SizedId other = (SizedId) o;
+                return width == other.width && height == other.height && id.equals(other.id);
+            }
+            public int hashCode() {
+                return 31 * (31 * id.hashCode() + width) + height;
+            }
+            public String toString() {
+                return id + "@" + width + "x" + height;
+            }
+        }
 
         public static class ImageSpec {
             public Object id;
@@ -867,6 +1368,15 @@ public class Atlas {
             public int downloadProgress;
             public int retries = 0;
             public ImageLoader.ImageLoadListener listener;
+            /** priority in queue. Guarded by ImageLoader's lock */
+            long requestSeq;
+            boolean visible = true;
+            /** sampleSize of the latest decode, 1 if served from disk cache */
+            int sampleSize = 1;
+            /** byte count of pooled bitmap image was decoded into, 0 if none */
+            int allocationBytes = 0;
+            /** cancelled while being decoded. Guarded by ImageLoader's lock */
+            boolean cancelled;
         }
 
         public interface ImageLoadListener {
@@ -874,8 +1384,660 @@ public class Atlas {
         }
         
         public static abstract class InputStreamProvider {
+            private ReadyListener readyListener;
+            
             public abstract InputStream getInputStream();
             public abstract boolean ready();
+            /** @return number of bytes in stream, -1 if unknown */
+            public long getSize() {
+                return -1;
+            }
+            /** @return mime type of encoded image, null if unknown */
+            public String getMimeType() {
+                return null;
+            }
+            
+            /** 
+             * Called by {@link ImageLoader} on decoding thread when provider is not {@link #ready()}. 
+             * Listener is notified once, the latest one wins 
+             */
+            public final void waitForReady(ReadyListener listener) {
+                synchronized (this) {
+                    readyListener = listener;
+                }
+                onWaitForReady();
+            }
+            
+            /** 
+             * Override to start watching for the bytes and call {@link #notifyReady()} when they land. 
+             * Otherwise image is only decoded when it is requested again after provider got ready
+             */
+            protected void onWaitForReady() {
+            }
+            
+            /** Called by {@link ImageLoader} under its lock when waiting request is dropped. Listener is not notified anymore */
+            public final void stopWaiting() {
+                synchronized (this) {
+                    readyListener = null;
+                }
+                onStopWaiting();
+            }
+            
+            /** Override to stop watching started by {@link #onWaitForReady()}. Must not call back into {@link ImageLoader} */
+            protected void onStopWaiting() {
+            }
+            
+            protected void notifyReady() {
+                ReadyListener listener;
+                synchronized (this) {
+                    listener = readyListener;
+                    readyListener = null;
+                }
+                if (listener != null) listener.onReady(this);
+            }
+            
+            public interface ReadyListener {
+                public void onReady(InputStreamProvider provider);
+            }
+        }
+    }
+
+    /**
+     * Mutable bitmaps no longer displayed, kept to be decoded into with {@link BitmapFactory.Options#inBitmap}
+     * instead of allocating new ones. Bitmaps are bucketed by byte count. Before KitKat decoder accepts only
+     * bitmap of exactly the same dimensions and no sampling, since KitKat any bitmap big enough would do.
+     * Thread-safe
+     */
+    public static class BitmapPool {
+        private static final String TAG = Atlas.BitmapPool.class.getSimpleName();
+        private static final boolean debug = false;
+        
+        public static final int DEFAULT_MAX_BYTES = ImageLoader.DEFAULT_MAX_BYTES / 4;
+        /** Build.VERSION_CODES.KITKAT */
+        private static final int SDK_KITKAT = 19;
+        /** bitmap could be up to this times bigger than needed, otherwise its memory is wasted while it is cached */
+        private static final float MAX_OVERSIZE = 1.5f;
+        
+        private int maxBytes = DEFAULT_MAX_BYTES;
+        private int sizeBytes = 0;
+        /** byte count -> bitmaps of that size */
+        private final TreeMap<Integer, ArrayList<Bitmap>> buckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+        /** bitmap -> its byte count, oldest first */
+        private final LinkedHashMap<Bitmap, Integer> pooled = new LinkedHashMap<Bitmap, Integer>();
+        
+        // counters
+        private int hits = 0;
+        private int misses = 0;
+        
+        /** 
+         * @param allocationBytes - how much memory bitmap really takes. Could be bigger than its byte count if it was decoded into
+         * @return true if bitmap is taken. Caller must not use it since then 
+         */
+        public synchronized boolean put(Bitmap bitmap, int allocationBytes) {
+            if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) return false;
+            if (allocationBytes > maxBytes || pooled.containsKey(bitmap)) return false;
+            int bytes = Math.max(allocationBytes, bitmap.getByteCount());
+            ArrayList<Bitmap> bucket = buckets.get(bytes);
+            if (bucket == null) buckets.put(bytes, bucket = new ArrayList<Bitmap>(4));
+            bucket.add(bitmap);
+            pooled.put(bitmap, bytes);
+            sizeBytes += bytes;
+            trimToSize(maxBytes);
+            if (debug) Log.w(TAG, "put() " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", bytes: " + bytes + ", pooled: " + pooled.size() + ", total: " + sizeBytes);
+            return true;
+        }
+        
+        /**
+         * @param originalWidth  - 
+         * @param originalHeight - dimensions of encoded image
+         * @param mimeType       - of encoded image. Nothing is reused before KitKat if it is unknown 
+         * @param sampleSize     - sample size image is going to be decoded with
+         * @return bitmap to be set as {@link BitmapFactory.Options#inBitmap} or null if none fits
+         */
+        public synchronized Bitmap obtain(int originalWidth, int originalHeight, String mimeType, int sampleSize) {
+            if (originalWidth <= 0 || originalHeight <= 0) return null;
+            Bitmap result = null;
+            if (android.os.Build.VERSION.SDK_INT >= SDK_KITKAT) {
+                // decoder rounds sampled dimensions up
+                int width  = (originalWidth  + sampleSize - 1) / sampleSize;
+                int height = (originalHeight + sampleSize - 1) / sampleSize;
+                int neededBytes = width * height * 4;
+                Integer bucketBytes = buckets.ceilingKey(neededBytes);
+                if (bucketBytes != null && bucketBytes <= neededBytes * MAX_OVERSIZE) {
+                    ArrayList<Bitmap> bucket = buckets.get(bucketBytes);
+                    result = bucket.get(bucket.size() - 1);
+                }
+            } else if (sampleSize == 1 && mimeType != null && (mimeType.startsWith(MIME_TYPE_IMAGE_JPEG) || mimeType.startsWith(MIME_TYPE_IMAGE_PNG))) {
+                ArrayList<Bitmap> bucket = buckets.get(originalWidth * originalHeight * 4);
+                if (bucket != null) {
+                    for (Bitmap bitmap : bucket) {
+                        if (bitmap.getWidth() == originalWidth && bitmap.getHeight() == originalHeight) {
+                            result = bitmap;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (result == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            remove(result);
+            return result;
+        }
+        
+        public synchronized void clear() {
+            trimToSize(0);
+        }
+        
+        public synchronized void setMaxBytes(int maxBytes) {
+            if (maxBytes < 0) throw new IllegalArgumentException("maxBytes cannot be negative: " + maxBytes);
+            this.maxBytes = maxBytes;
+            trimToSize(maxBytes);
+        }
+        
+        public synchronized int getMaxBytes() {
+            return maxBytes;
+        }
+        
+        public synchronized int getSizeBytes() {
+            return sizeBytes;
+        }
+        
+        /** @return number of decodes done into pooled bitmaps */
+        public synchronized int getHitCount() {
+            return hits;
+        }
+        
+        /** @return number of decodes pool had nothing suitable for */
+        public synchronized int getMissCount() {
+            return misses;
+        }
+        
+        /** Drops the oldest bitmaps until size fits. They are left to GC */
+        synchronized void trimToSize(int bytesToFit) {
+            while (sizeBytes > bytesToFit && !pooled.isEmpty()) {
+                remove(pooled.keySet().iterator().next());
+            }
+        }
+        
+        private void remove(Bitmap bitmap) {
+            Integer bytes = pooled.remove(bitmap);
+            if (bytes == null) return;
+            sizeBytes -= bytes;
+            ArrayList<Bitmap> bucket = buckets.get(bytes);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) buckets.remove(bytes);
+        }
+    }
+
+    /**
+     * Renders masked participant avatars once per (userIds, size, shape, background) and keeps them
+     * in LRU bounded by total bytes of cached bitmaps. Served bitmaps are shared between views and 
+     * must not be drawn into.
+     * <p>
+     * Entries are not compared with participant's current Drawable, as providers could build a new one 
+     * on every call. Only avatar rendered without Drawable is rendered again once participant has one. 
+     * Use {@link #invalidate(String)} or {@link #clear()} when participant data changes.
+     */
+    public static class AvatarCache {
+        private static final String TAG = Atlas.AvatarCache.class.getSimpleName();
+        private static final boolean debug = false;
+        
+        public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+        
+        private static final int SHAPE_SINGLE = 0;
+        private static final int SHAPE_MULTI  = 1;
+        /** mask-only shapes */
+        private static final int SHAPE_MULTI_LEFT  = 2;
+        private static final int SHAPE_MULTI_RIGHT = 3;
+        
+        /** proportions of multi-avatar taken from original 40dp layout */
+        private static final float MULTI_RADIUS         = 13f / 40;
+        private static final float MULTI_CENTER_TWO     = 27f / 40;
+        private static final float MULTI_SPACING_RADIUS = 14.3f / 40;
+        private static final float MULTI_AVATAR_SIZE    = 26f / 40;
+        
+        private int maxBytes = DEFAULT_MAX_BYTES;
+        private int totalBytes = 0;
+        
+        private final Paint avatarPaint = new Paint();
+        private final Paint maskPaint = new Paint();
+        private final Paint circlePaint = new Paint();
+        private final Paint erasePaint = new Paint();
+        
+        /** key -> Entry, access ordered */
+        private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(40, 1f, true);
+        /** key -> mask bitmap */
+        private final HashMap<String, Bitmap> masks = new HashMap<String, Bitmap>();
+        
+        public AvatarCache() {
+            avatarPaint.setAntiAlias(true);
+            avatarPaint.setDither(true);
+            
+            maskPaint.setAntiAlias(true);
+            maskPaint.setDither(true);
+            maskPaint.setXfermode(new PorterDuffXfermode(Mode.DST_IN));
+            
+            circlePaint.setStyle(Style.FILL_AND_STROKE);
+            circlePaint.setColor(Color.CYAN);
+            circlePaint.setAntiAlias(true);
+            
+            erasePaint.setAntiAlias(true);
+            erasePaint.setXfermode(new PorterDuffXfermode(Mode.CLEAR));
+        }
+        
+        /**
+         * @param userId            - participant's userId, could be null if unknown
+         * @param participant       - could be null. Then only background is rendered
+         * @param sizePx            - width and height of avatar
+         * @param backgroundColor   - color to fill circle with
+         * @return circle avatar of requested size. Initials are not rendered, show them on top if needed
+         */
+        public synchronized Bitmap getAvatar(String userId, Participant participant, int sizePx, int backgroundColor) {
+            if (sizePx <= 0) throw new IllegalArgumentException("sizePx must be positive: " + sizePx);
+            Drawable drawable = participant != null ? participant.getAvatarDrawable() : null;
+            String key = key(SHAPE_SINGLE, sizePx, backgroundColor, userId, null);
+            
+            Entry entry = cache.get(key);
+            if (entry != null && (entry.hadDrawables[0] || drawable == null)) return entry.bitmap;
+            
+            Bitmap bmp = Bitmap.createBitmap(sizePx, sizePx, Config.ARGB_8888);
+            Canvas canvas = new Canvas(bmp);
+            canvas.drawColor(backgroundColor);
+            if (drawable != null) {
+                drawable.setBounds(0, 0, sizePx, sizePx);
+                drawable.draw(canvas);
+            }
+            canvas.drawBitmap(mask(SHAPE_SINGLE, sizePx), 0, 0, maskPaint);
+            
+            put(key, new Entry(bmp, new String[] {userId}, new boolean[] {drawable != null}));
+            return bmp;
+        }
+        
+        /**
+         * Group avatar: left participant at top-left, right participant at bottom-right
+         * 
+         * @see #getAvatar(String, Participant, int, int)
+         */
+        public synchronized Bitmap getAvatar(String leftUserId, Participant left, String rightUserId, Participant right, int sizePx, int backgroundColor) {
+            if (sizePx <= 0) throw new IllegalArgumentException("sizePx must be positive: " + sizePx);
+            Drawable leftDrawable = left != null ? left.getAvatarDrawable() : null;
+            Drawable rightDrawable = right != null ? right.getAvatarDrawable() : null;
+            String key = key(SHAPE_MULTI, sizePx, backgroundColor, leftUserId, rightUserId);
+            
+            Entry entry = cache.get(key);
+            if (entry != null && (entry.hadDrawables[0] || leftDrawable == null) && (entry.hadDrawables[1] || rightDrawable == null)) return entry.bitmap;
+            
+            Bitmap bmp = Bitmap.createBitmap(sizePx, sizePx, Config.ARGB_8888);
+            Canvas canvas = new Canvas(bmp);
+            canvas.drawColor(backgroundColor);
+            
+            if (leftDrawable != null || rightDrawable != null) {
+                Bitmap tmpBmp = Bitmap.createBitmap(sizePx, sizePx, Config.ARGB_8888);
+                Canvas tmpCanvas = new Canvas(tmpBmp);
+                int avatarSize = (int) (MULTI_AVATAR_SIZE * sizePx);
+                if (leftDrawable != null) {
+                    leftDrawable.setBounds(0, 0, avatarSize, avatarSize);
+                    leftDrawable.draw(tmpCanvas);
+                    tmpCanvas.drawBitmap(mask(SHAPE_MULTI_LEFT, sizePx), 0, 0, maskPaint);
+                    canvas.drawBitmap(tmpBmp, 0, 0, avatarPaint);
+                }
+                if (rightDrawable != null) {
+                    tmpCanvas.drawColor(Color.TRANSPARENT, Mode.CLEAR);
+                    rightDrawable.setBounds(sizePx - avatarSize, sizePx - avatarSize, sizePx, sizePx);
+                    rightDrawable.draw(tmpCanvas);
+                    tmpCanvas.drawBitmap(mask(SHAPE_MULTI_RIGHT, sizePx), 0, 0, maskPaint);
+                    canvas.drawBitmap(tmpBmp, 0, 0, avatarPaint);
+                }
+                tmpBmp.recycle();
+            }
+            canvas.drawBitmap(mask(SHAPE_MULTI, sizePx), 0, 0, maskPaint);      // always apply mask
+            
+            put(key, new Entry(bmp, new String[] {leftUserId, rightUserId}, new boolean[] {leftDrawable != null, rightDrawable != null}));
+            return bmp;
+        }
+        
+        /** Drops every avatar rendered for specified user, including group avatars */
+        public synchronized void invalidate(String userId) {
+            for (Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator(); it.hasNext();) {
+                Entry entry = it.next().getValue();
+                for (String entryUserId : entry.userIds) {
+                    if (entryUserId != null && entryUserId.equals(userId)) {
+                        totalBytes -= entry.bitmap.getByteCount();
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            if (debug) Log.w(TAG, "invalidate() userId: " + userId + ", size: " + cache.size() + ", bytes: " + totalBytes);
+        }
+        
+        public synchronized void clear() {
+            cache.clear();
+            totalBytes = 0;
+        }
+        
+        public synchronized void setMaxBytes(int maxBytes) {
+            if (maxBytes < 0) throw new IllegalArgumentException("maxBytes cannot be negative: " + maxBytes);
+            this.maxBytes = maxBytes;
+            trim();
+        }
+        
+        public synchronized int getMaxBytes() {
+            return maxBytes;
+        }
+        
+        public synchronized int getSizeBytes() {
+            return totalBytes;
+        }
+        
+        private void put(String key, Entry entry) {
+            Entry previous = cache.put(key, entry);
+            if (previous != null) totalBytes -= previous.bitmap.getByteCount();
+            totalBytes += entry.bitmap.getByteCount();
+            trim();
+            if (debug) Log.w(TAG, "put() key: " + key + ", size: " + cache.size() + ", bytes: " + totalBytes);
+        }
+        
+        private void trim() {
+            for (Iterator<Entry> it = cache.values().iterator(); totalBytes > maxBytes && it.hasNext();) {
+                Entry eldest = it.next();
+                totalBytes -= eldest.bitmap.getByteCount();
+                it.remove();                    // bitmap could still be displayed, so it is never recycled here 
+            }
+        }
+        
+        private Bitmap mask(int shape, int sizePx) {
+            String key = shape + ":" + sizePx;
+            Bitmap mask = masks.get(key);
+            if (mask != null) return mask;
+            
+            mask = Bitmap.createBitmap(sizePx, sizePx, Config.ARGB_8888);
+            Canvas canvas = new Canvas(mask);
+            float radiusOne = MULTI_RADIUS * sizePx;
+            float centerTwo = MULTI_CENTER_TWO * sizePx;
+            float spacingRadius = MULTI_SPACING_RADIUS * sizePx;
+            switch (shape) {
+                case SHAPE_SINGLE :
+                    canvas.drawCircle(0.5f * sizePx, 0.5f * sizePx, 0.5f * sizePx, circlePaint);
+                    break;
+                case SHAPE_MULTI_LEFT :
+                    canvas.drawCircle(radiusOne, radiusOne, radiusOne, circlePaint);
+                    canvas.drawCircle(centerTwo, centerTwo, spacingRadius, erasePaint); // cut right-bottom
+                    break;
+                case SHAPE_MULTI_RIGHT :
+                    canvas.drawCircle(centerTwo, centerTwo, radiusOne, circlePaint);
+                    break;
+                case SHAPE_MULTI :
+                    canvas.drawCircle(radiusOne, radiusOne, radiusOne, circlePaint);
+                    canvas.drawCircle(centerTwo, centerTwo, spacingRadius, erasePaint); // cut right-bottom
+                    canvas.drawCircle(centerTwo, centerTwo, radiusOne, circlePaint);
+                    break;
+            }
+            masks.put(key, mask);
+            return mask;
+        }
+        
+        private static String key(int shape, int sizePx, int backgroundColor, String firstUserId, String secondUserId) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(shape).append(':').append(sizePx).append(':').append(backgroundColor).append(':').append(firstUserId);
+            if (shape == SHAPE_MULTI) sb.append(':').append(secondUserId);
+            return sb.toString();
+        }
+        
+        private static class Entry {
+            final Bitmap bitmap;
+            final String[] userIds;
+            /** per userId: true if avatar was rendered from participant's Drawable, not just background */
+            final boolean[] hadDrawables;
+            public Entry(Bitmap bitmap, String[] userIds, boolean[] hadDrawables) {
+                this.bitmap = bitmap;
+                this.userIds = userIds;
+                this.hadDrawables = hadDrawables;
+            }
+        }
+    }
+
+    /**
+     * Merges bursts of change events into single update. First request schedules update after coalescing 
+     * window, requests arrived meanwhile are merged into it. Updates are aligned to frame boundaries and 
+     * never run more often than once per frame, whatever the window is. 
+     * <p>
+     * Must be used from main thread only 
+     */
+    public static class UpdateCoalescer {
+        private static final String TAG = Atlas.UpdateCoalescer.class.getSimpleName();
+        private static final boolean debug = false;
+        
+        public static final long DEFAULT_WINDOW_MS = 50;
+        /** Choreographer is not available on API 14, so frame duration is assumed */
+        public static final long FRAME_MS = 16;
+        
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private final Runnable update;
+        private final String name;
+        private long windowMs = DEFAULT_WINDOW_MS;
+        
+        private boolean scheduled = false;
+        private long lastUpdateAt = 0;
+        
+        // counters
+        private int requests = 0;
+        private int merged = 0;
+        private int updates = 0;
+        
+        /**
+         * @param name   - used in logs 
+         * @param update - runs on main thread to apply everything requested
+         */
+        public UpdateCoalescer(String name, Runnable update) {
+            if (update == null) throw new IllegalArgumentException("update cannot be null");
+            this.name = name;
+            this.update = update;
+        }
+        
+        /** Schedules update unless it is scheduled already. Otherwise request is merged into scheduled update */
+        public void request() {
+            requests++;
+            if (scheduled) {
+                merged++;
+                return;
+            }
+            scheduled = true;
+            long now = SystemClock.uptimeMillis();
+            long runAt = Math.max(now + windowMs, lastUpdateAt + FRAME_MS);
+            // align to the next frame boundary counting from the last update
+            if (lastUpdateAt > 0) runAt = lastUpdateAt + ((runAt - lastUpdateAt + FRAME_MS - 1) / FRAME_MS) * FRAME_MS;
+            handler.postAtTime(runUpdate, runAt);
+            if (debug) Log.w(TAG, name + ".request() scheduled in: " + (runAt - now) + "ms");
+        }
+        
+        /** Runs scheduled update immediately. Nothing happens if no update is scheduled */
+        public void flush() {
+            if (!scheduled) return;
+            handler.removeCallbacks(runUpdate);
+            runUpdate.run();
+        }
+        
+        /** Drops scheduled update. Counters are kept */
+        public void cancel() {
+            handler.removeCallbacks(runUpdate);
+            scheduled = false;
+        }
+        
+        private final Runnable runUpdate = new Runnable() {
+            public void run() {
+                scheduled = false;
+                lastUpdateAt = SystemClock.uptimeMillis();
+                updates++;
+                update.run();
+                if (debug) Log.w(TAG, name + ".update() requests: " + requests + ", merged: " + merged + ", updates: " + updates 
+                        + ", in " + (SystemClock.uptimeMillis() - lastUpdateAt) + "ms");
+            }
+        };
+        
+        /** @param windowMs - how long requests are collected before update. 0 means at the next frame */
+        public void setWindowMs(long windowMs) {
+            if (windowMs < 0) throw new IllegalArgumentException("windowMs cannot be negative: " + windowMs);
+            this.windowMs = windowMs;
+        }
+        
+        public long getWindowMs() {
+            return windowMs;
+        }
+        
+        public boolean isScheduled() {
+            return scheduled;
+        }
+        
+        /** @return total number of requests */
+        public int getRequestCount() {
+            return requests;
+        }
+        
+        /** @return number of requests merged into already scheduled update */
+        public int getMergedCount() {
+            return merged;
+        }
+        
+        /** @return number of updates run */
+        public int getUpdateCount() {
+            return updates;
+        }
+        
+        public void resetCounters() {
+            requests = 0;
+            merged = 0;
+            updates = 0;
+        }
+    }
+
+    /**
+     * Drives animation of all {@link GIFDrawable}s with single ticker on main thread. Drawable asks for 
+     * its next frame when it is drawn, so GIFs that are not drawn (scrolled away, covered, window hidden) 
+     * stop animating by themselves. Drawables made invisible or detached from their View are skipped.
+     * <p>
+     * Frames due at the same time are invalidated in one tick and ticks never run more often than 
+     * {@link #getMaxFps()}, whatever number of GIFs is on screen.
+     * <p>
+     * Must be used from main thread only 
+     */
+    public static class GIFAnimator {
+        private static final String TAG = Atlas.GIFAnimator.class.getSimpleName();
+        private static final boolean debug = false;
+        
+        public static final int DEFAULT_MAX_FPS = 25;
+        
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        /** drawable -> uptime its next frame is due at */
+        private final LinkedHashMap<GIFDrawable, Long> pending = new LinkedHashMap<GIFDrawable, Long>();
+        private long minTickIntervalMs = 1000 / DEFAULT_MAX_FPS;
+        
+        private long scheduledAt = 0;
+        private long lastTickAt = 0;
+        
+        // counters
+        private int ticks = 0;
+        private int frames = 0;
+        private int skipped = 0;
+        
+        /** 
+         * Schedules drawable to be invalidated when its next frame is due. Earlier request of the same 
+         * drawable is replaced
+         */
+        public void requestFrame(GIFDrawable drawable, long delayMs) {
+            if (drawable == null) throw new IllegalArgumentException("drawable cannot be null");
+            if (delayMs < 0) throw new IllegalArgumentException("delayMs cannot be negative: " + delayMs);
+            long dueAt = SystemClock.uptimeMillis() + delayMs;
+            pending.put(drawable, dueAt);
+            schedule(dueAt);
+        }
+        
+        /** Drops pending frame of the drawable, i.e. when it becomes invisible */
+        public void cancel(GIFDrawable drawable) {
+            pending.remove(drawable);
+            if (pending.isEmpty()) {
+                handler.removeCallbacks(tick);
+                scheduledAt = 0;
+            }
+        }
+        
+        /** Posts tick for frame due at given time unless earlier tick is posted already */
+        private void schedule(long dueAt) {
+            long runAt = Math.max(dueAt, lastTickAt + minTickIntervalMs);
+            if (scheduledAt != 0 && scheduledAt <= runAt) return;
+            handler.removeCallbacks(tick);
+            handler.postAtTime(tick, runAt);
+            scheduledAt = runAt;
+        }
+        
+        private final Runnable tick = new Runnable() {
+            public void run() {
+                scheduledAt = 0;
+                lastTickAt = SystemClock.uptimeMillis();
+                ticks++;
+                ArrayList<GIFDrawable> due = new ArrayList<GIFDrawable>();
+                long nextDueAt = Long.MAX_VALUE;
+                for (Iterator<Map.Entry<GIFDrawable, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<GIFDrawable, Long> entry = it.next();
+                    if (entry.getValue() <= lastTickAt) {
+                        due.add(entry.getKey());
+                        it.remove();
+                    } else {
+                        nextDueAt = Math.min(nextDueAt, entry.getValue());
+                    }
+                }
+                // invalidation could draw synchronously and request next frame, so pending is not iterated here 
+                for (GIFDrawable drawable : due) {
+                    if (drawable.isVisible() && drawable.getCallback() != null) {
+                        frames++;
+                        drawable.invalidateSelf();
+                    } else {
+                        skipped++;
+                    }
+                }
+                if (nextDueAt != Long.MAX_VALUE) schedule(nextDueAt);
+                if (debug) Log.w(TAG, "tick() frames: " + due.size() + ", pending: " + pending.size() 
+                        + ", ticks: " + ticks + ", total frames: " + frames + ", skipped: " + skipped);
+            }
+        };
+        
+        /** @param maxFps - how many times per second GIFs could be invalidated at most, all together */
+        public void setMaxFps(int maxFps) {
+            if (maxFps <= 0) throw new IllegalArgumentException("maxFps must be positive: " + maxFps);
+            this.minTickIntervalMs = 1000 / maxFps;
+        }
+        
+        public int getMaxFps() {
+            return minTickIntervalMs > 0 ? (int) (1000 / minTickIntervalMs) : 1000;
+        }
+        
+        /** @return number of drawables waiting for their next frame */
+        public int getPendingCount() {
+            return pending.size();
+        }
+        
+        /** @return number of ticks run */
+        public int getTickCount() {
+            return ticks;
+        }
+        
+        /** @return number of frames invalidated */
+        public int getFrameCount() {
+            return frames;
+        }
+        
+        /** @return number of frames dropped as drawable was invisible or detached by the time frame was due */
+        public int getSkippedCount() {
+            return skipped;
+        }
+        
+        public void resetCounters() {
+            ticks = 0;
+            frames = 0;
+            skipped = 0;
         }
     }
 
@@ -956,11 +2118,40 @@ public class Atlas {
         }
     }
 
+    /** 
+     * Streams part's content. Downloading is up to the caller by default: image waiting for the content 
+     * is decoded as soon as whoever downloads the part calls {@link #notifyContentReady(MessagePart)}. 
+     * With <code>download</code> set, provider starts download itself once image is waiting for it 
+     * and reports readiness when download is complete 
+     */
     public static class MessagePartStreamProvider extends ImageLoader.InputStreamProvider {
+        /** part id -> providers of images waiting for part's content */
+        private static final HashMap<Uri, ArrayList<MessagePartStreamProvider>> waitingForContent = new HashMap<Uri, ArrayList<MessagePartStreamProvider>>();
+        
+        /** Wakes up images waiting for part's content. Call when download of the part is complete */
+        public static void notifyContentReady(MessagePart part) {
+            ArrayList<MessagePartStreamProvider> providers;
+            synchronized (waitingForContent) {
+                providers = waitingForContent.remove(part.getId());
+            }
+            if (providers == null) return;
+            // outside of the lock, as loader is called back
+            for (MessagePartStreamProvider provider : providers) {
+                provider.notifyReady();
+            }
+        }
+        
         public final MessagePart part;
+        /** download part when image is waiting for it */
+        private final boolean download;
+        private boolean downloadRequested = false;
         public MessagePartStreamProvider(MessagePart part) {
+            this(part, false);
+        }
+        public MessagePartStreamProvider(MessagePart part, boolean download) {
             if (part == null) throw new IllegalStateException("MessagePart cannot be null");
             this.part = part;
+            this.download = download;
         }
         public InputStream getInputStream() {
             return part.getDataStream();
@@ -968,6 +2159,50 @@ public class Atlas {
         public boolean ready() {
             return part.isContentReady();
         }
+        public long getSize() {
+            return part.getSize();
+        }
+        public String getMimeType() {
+            return part.getMimeType();
+        }
+        protected void onWaitForReady() {
+            synchronized (waitingForContent) {
+                ArrayList<MessagePartStreamProvider> providers = waitingForContent.get(part.getId());
+                if (providers == null) {
+                    providers = new ArrayList<MessagePartStreamProvider>(1);
+                    waitingForContent.put(part.getId(), providers);
+                }
+                if (!providers.contains(this)) providers.add(this);
+            }
+            if (!download) return;
+            synchronized (this) {
+                if (downloadRequested) return;
+                downloadRequested = true;
+            }
+            part.download(new LayerProgressListener() {
+                public void onProgressStart(MessagePart part, Operation operation) {
+                }
+                public void onProgressUpdate(MessagePart part, Operation operation, long transferredBytes) {
+                }
+                public void onProgressComplete(MessagePart part, Operation operation) {
+                    notifyContentReady(part);
+                }
+                public void onProgressError(MessagePart part, Operation operation, Throwable cause) {
+                    Log.e(ImageLoader.TAG, "onProgressError() part: " + part.getId(), cause);
+                    synchronized (MessagePartStreamProvider.this) {
+                        downloadRequested = false;      // next wait would try again
+                    }
+                }
+            });
+        }
+        protected void onStopWaiting() {
+            synchronized (waitingForContent) {
+                ArrayList<MessagePartStreamProvider> providers = waitingForContent.get(part.getId());
+                if (providers == null) return;
+                providers.remove(this);
+                if (providers.isEmpty()) waitingForContent.remove(part.getId());
+            }
+        }
     }
     
     /** 
@@ -976,20 +2211,18 @@ public class Atlas {
      * 
      * Used for GIF purposes, because it calls <code>.reset()</code> stream during execution
      */
-    public static class MessagePartBufferedStreamProvider extends ImageLoader.InputStreamProvider {
-        public final MessagePart part;
+    public static class MessagePartBufferedStreamProvider extends MessagePartStreamProvider {
         public MessagePartBufferedStreamProvider(MessagePart part) {
-            if (part == null) throw new IllegalStateException("MessagePart cannot be null");
-            this.part = part;
+            super(part);
+        }
+        public MessagePartBufferedStreamProvider(MessagePart part, boolean download) {
+            super(part, download);
         }
         public InputStream getInputStream() {
             BufferedInputStream stream = new BufferedInputStream(part.getDataStream(), 16 * 1024);
             stream.mark(16 * 1024);
             return stream;
         }
-        public boolean ready() {
-            return part.isContentReady();
-        }
     }
 
     public static class FileStreamProvider extends ImageLoader.InputStreamProvider {
@@ -1011,6 +2244,9 @@ public class Atlas {
             if (ImageLoader.debug) Log.w(ImageLoader.TAG, "ready() FileStreamProvider, file ready: " + file.getAbsolutePath());
             return true;
         }
+        public long getSize() {
+            return file.length();
+        }
     }
 
     /** 
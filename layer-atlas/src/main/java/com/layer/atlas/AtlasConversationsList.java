@@ -25,17 +25,8 @@ import java.util.List;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -138,50 +129,7 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
         this.conversationsList = (ListView) findViewById(R.id.atlas_conversations_view);
         this.conversationsList.setAdapter(conversationsAdapter = new BaseAdapter() {
             
-            /** to draw right avatar with mask separately */
-            Bitmap tmpBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()), Config.ARGB_8888);
-            Bitmap maskSingleBmp     = Bitmap.createBitmap((int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()), Config.ARGB_8888);
-            Bitmap maskMultiLeftBmp  = Bitmap.createBitmap((int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()), Config.ARGB_8888);
-            Bitmap maskMultiRightBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()), Config.ARGB_8888);
-            Bitmap maskMultiBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()), Config.ARGB_8888);
-            Paint avatarPaint = new Paint();
-            Paint maskPaint = new Paint();
-            {
-                avatarPaint.setAntiAlias(true);
-                avatarPaint.setDither(true);
-                
-                maskPaint.setAntiAlias(true);
-                maskPaint.setDither(true);
-                maskPaint.setXfermode(new PorterDuffXfermode(Mode.DST_IN));
-                
-                Paint paintCircle = new Paint();
-                paintCircle.setStyle(Style.FILL_AND_STROKE);
-                paintCircle.setColor(Color.CYAN);
-                paintCircle.setAntiAlias(true);
-                
-                Canvas maskSingleCanvas = new Canvas(maskSingleBmp);
-                maskSingleCanvas.drawCircle(0.5f * maskSingleBmp.getWidth(), 0.5f * maskSingleBmp.getHeight(), 0.5f * maskSingleBmp.getWidth(), paintCircle);
-                
-                Paint paintErase = new Paint();
-                paintErase.setAntiAlias(true);
-                paintErase.setXfermode(new PorterDuffXfermode(Mode.CLEAR));
-                
-                float radiusOne = Tools.getPxFromDp(13f, getContext());
-                float centerTwo = Tools.getPxFromDp(27f, getContext());
-                float spacingRadius = Tools.getPxFromDp(14.3f, getContext());
-
-                Canvas maskLeftCanvas = new Canvas(maskMultiLeftBmp);
-                maskLeftCanvas.drawCircle(radiusOne, radiusOne, radiusOne, paintCircle);
-                maskLeftCanvas.drawCircle(centerTwo, centerTwo, spacingRadius, paintErase); // cut right-bottom
-                
-                Canvas maskRightCanvas = new Canvas(maskMultiRightBmp);
-                maskRightCanvas.drawCircle(centerTwo, centerTwo, radiusOne, paintCircle);
-
-                Canvas maskMultiCanvas = new Canvas(maskMultiBmp);
-                maskMultiCanvas.drawCircle(radiusOne, radiusOne, radiusOne, paintCircle);
-                maskMultiCanvas.drawCircle(centerTwo, centerTwo, spacingRadius, paintErase);// cut right-bottom
-                maskMultiCanvas.drawCircle(centerTwo, centerTwo, radiusOne, paintCircle);
-            }
+            int avatarSizePx = (int)Tools.getPxFromDp(40, getContext());
             
             public View getView(int position, View convertView, ViewGroup parent) {
                 if (convertView == null) {
@@ -203,16 +151,6 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
                 View avatarSingle = convertView.findViewById(R.id.atlas_view_conversations_list_convert_avatar_single);
                 View avatarMulti = convertView.findViewById(R.id.atlas_view_conversations_list_convert_avatar_multi);
                 ImageView avatarImgView = (ImageView) convertView.findViewById(R.id.atlas_view_conversations_list_convert_avatar_img);
-                Bitmap avatarBmp = null;
-                if (avatarImgView.getDrawable() instanceof BitmapDrawable){
-                    BitmapDrawable bitmapDrawable = (BitmapDrawable) avatarImgView.getDrawable();
-                    avatarBmp = bitmapDrawable.getBitmap();
-                } else {
-                    avatarBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()), Config.ARGB_8888);
-                    avatarImgView.setImageBitmap(avatarBmp);
-                }
-                Canvas canvas = new Canvas(avatarBmp);
-                canvas.drawColor(avatarBackgroundColor);
                 if (allButMe.size() < 2) {
                     String conterpartyUserId = allButMe.get(0);
                     Atlas.Participant participant = participantProvider.getParticipant(conterpartyUserId);
@@ -221,14 +159,13 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
                         textInitials.setTextColor(avatarTextColor);
                         avatarSingle.setVisibility(View.VISIBLE);
                     } else {
-                        Drawable drawable = participant.getAvatarDrawable();
-                        drawable.setBounds(0, 0, (int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()));
-                        drawable.draw(canvas);
                         avatarSingle.setVisibility(View.GONE);
                     }
-                    canvas.drawBitmap(maskSingleBmp, 0, 0, maskPaint);
+                    avatarImgView.setImageBitmap(Atlas.avatarCache.getAvatar(conterpartyUserId, participant, avatarSizePx, avatarBackgroundColor));
                     avatarMulti.setVisibility(View.GONE);
                 } else {
+                    String leftUserId = null;
+                    String rightUserId = null;
                     Participant leftParticipant = null;
                     Participant rightParticipant = null;
                     for (Iterator<String> itUserId = allButMe.iterator(); itUserId.hasNext();) {
@@ -238,26 +175,21 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
                         
                         if (leftParticipant == null) {
                             leftParticipant = p;
+                            leftUserId = userId;
                         } else {
                             rightParticipant = p;
+                            rightUserId = userId;
                             break;
                         }
                     }
                     
                     TextView textInitialsLeft  = (TextView) convertView.findViewById(R.id.atlas_view_conversations_list_convert_avatar_multi_left);
                     TextView textInitialsRight = (TextView) convertView.findViewById(R.id.atlas_view_conversations_list_convert_avatar_multi_right);
-                    Canvas tmpCanvas = new Canvas(tmpBmp);
                     if (leftParticipant == null || leftParticipant.getAvatarDrawable() == null) {
                         textInitialsLeft.setText(leftParticipant == null ? "?" : Atlas.getInitials(leftParticipant));
                         textInitialsLeft.setTextColor(avatarTextColor);
                         textInitialsLeft.setVisibility(View.VISIBLE);
                     } else {
-                        tmpCanvas.drawColor(Color.TRANSPARENT, Mode.CLEAR);
-                        Drawable leftDrawable = leftParticipant.getAvatarDrawable();
-                        leftDrawable.setBounds(0, 0, (int)Tools.getPxFromDp(26, getContext()), (int)Tools.getPxFromDp(26, getContext()));
-                        leftDrawable.draw(tmpCanvas);
-                        tmpCanvas.drawBitmap(maskMultiLeftBmp, 0, 0, maskPaint);
-                        canvas.drawBitmap(tmpBmp, 0, 0, avatarPaint);
                         textInitialsLeft.setVisibility(View.GONE);
                     }
                     if (rightParticipant == null || rightParticipant.getAvatarDrawable() == null) {
@@ -265,16 +197,10 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
                         textInitialsRight.setTextColor(avatarTextColor);
                         textInitialsRight.setVisibility(View.VISIBLE);
                     } else {
-                        tmpCanvas.drawColor(Color.TRANSPARENT, Mode.CLEAR);
-                        Drawable drawable = rightParticipant.getAvatarDrawable();
-                        drawable.setBounds((int)Tools.getPxFromDp(14, getContext()), (int)Tools.getPxFromDp(14, getContext()), (int)Tools.getPxFromDp(40, getContext()), (int)Tools.getPxFromDp(40, getContext()));
-                        drawable.draw(tmpCanvas);
-                        tmpCanvas.drawBitmap(maskMultiRightBmp, 0, 0, maskPaint);
-                        canvas.drawBitmap(tmpBmp, 0, 0, avatarPaint);
                         textInitialsRight.setVisibility(View.GONE);
                     }
                     
-                    canvas.drawBitmap(maskMultiBmp, 0, 0, maskPaint);               // always apply mask 
+                    avatarImgView.setImageBitmap(Atlas.avatarCache.getAvatar(leftUserId, leftParticipant, rightUserId, rightParticipant, avatarSizePx, avatarBackgroundColor));
                     avatarSingle.setVisibility(View.GONE);
                     avatarMulti.setVisibility(View.VISIBLE);
                 }
@@ -364,6 +290,7 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
     
     public void updateValues() {
         if (conversationsAdapter == null) return; // never initialized
+        updateCoalescer.cancel();                 // whatever is requested is going to be reloaded now
 
         conversations.clear(); // always clean, rebuild if authenticated 
         conversationsAdapter.notifyDataSetChanged();
@@ -465,12 +392,27 @@ public class AtlasConversationsList extends FrameLayout implements LayerChangeEv
         for (LayerChange change : event.getChanges()) {
             if (change.getObjectType() == LayerObject.Type.CONVERSATION
                     || change.getObjectType() == LayerObject.Type.MESSAGE) {
-                updateValues();
+                updateCoalescer.request();
                 return;
             }
         }
     }
     
+    /** Merges bursts of change events (i.e. during initial sync), so conversations are reloaded at most once per coalescing window */
+    private final Atlas.UpdateCoalescer updateCoalescer = new Atlas.UpdateCoalescer(TAG, new Runnable() {
+        public void run() {
+            updateValues();
+        }
+    });
+    
+    /** 
+     * Controls how change events are merged before conversations are reloaded. Use {@link Atlas.UpdateCoalescer#setWindowMs(long)} 
+     * to tune latency and its counters to see how many events were merged 
+     */
+    public Atlas.UpdateCoalescer getUpdateCoalescer() {
+        return updateCoalescer;
+    }
+    
     public ConversationClickListener getClickListener() {
         return clickListener;
     }
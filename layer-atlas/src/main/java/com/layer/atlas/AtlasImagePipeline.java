@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.Log;
+
+import com.layer.atlas.Atlas.ImageLoader;
+import com.layer.atlas.Atlas.ImageLoader.ImageSpec;
+import com.layer.atlas.Atlas.MessagePartStreamProvider;
+import com.layer.atlas.cells.ImageCell;
+import com.layer.sdk.listeners.LayerProgressListener;
+import com.layer.sdk.messaging.MessagePart;
+
+/**
+ * Everything needed to display an image message, shared by all its views: bubble in the list and
+ * full-screen viewer. Preview part is served as soon as it is decoded, full part replaces it once
+ * its content is downloaded and decoded for the same size, so view never goes blank in between.
+ * <p>
+ * Pipeline never starts a download by itself: preview is downloaded when it is asked for, full part
+ * only by {@link #loadFull()} or {@link #download(MessagePart)}. Each part is downloaded once, whoever
+ * asks for it first, and progress is reported to all {@link Listener}s. Bitmaps are decoded by {@link Atlas#imageLoader} with size buckets, bitmaps of
+ * small parts are shared between views regardless of their sizes.
+ * <p>
+ * Pipelines are kept in LRU by full part id, see {@link #obtain(MessagePart, MessagePart, int, int, int)}.
+ * Thread-safe. Listeners are called on whatever thread download or decoding is completed
+ */
+public class AtlasImagePipeline implements ImageLoader.ImageLoadListener {
+    private static final String TAG = AtlasImagePipeline.class.getSimpleName();
+    private static final boolean debug = false;
+
+    public static final int MAX_PIPELINES = 64;
+
+    /** full part id -> pipeline, access ordered */
+    private static final LinkedHashMap<Uri, AtlasImagePipeline> pipelines = new LinkedHashMap<Uri, AtlasImagePipeline>(16, 1f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<Uri, AtlasImagePipeline> eldest) {
+            return size() > MAX_PIPELINES;
+        }
+    };
+
+    public final MessagePart fullPart;
+    /** null if image has no preview */
+    public final MessagePart previewPart;
+    public final int declaredWidth;
+    public final int declaredHeight;
+    public final int orientation;
+
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+    /** part id -> transferred bytes of parts being downloaded */
+    private final HashMap<Uri, Long> downloads = new HashMap<Uri, Long>();
+    /** 
+     * ids of images requested or served, placeholders included. Released when the last listener is removed: 
+     * until then bitmaps are not reused by decoder, as drawables of bound views could still refer to them 
+     */
+    private final HashSet<Object> imageIds = new HashSet<Object>();
+    /** the latest image served, to be displayed while image for another size is decoded */
+    private Object lastServedId;
+    /** learned from decoding full part if not declared */
+    private int decodedWidth;
+    private int decodedHeight;
+
+    /** @return pipeline of the image, created if there is none */
+    public static AtlasImagePipeline obtain(MessagePart fullPart, MessagePart previewPart, int declaredWidth, int declaredHeight, int orientation) {
+        if (fullPart == null) throw new IllegalArgumentException("fullPart cannot be null");
+        synchronized (pipelines) {
+            AtlasImagePipeline pipeline = pipelines.get(fullPart.getId());
+            if (pipeline == null) {
+                pipeline = new AtlasImagePipeline(fullPart, previewPart, declaredWidth, declaredHeight, orientation);
+                pipelines.put(fullPart.getId(), pipeline);
+            }
+            return pipeline;
+        }
+    }
+
+    /** Forgets all pipelines, i.e. when user logs out */
+    public static void clearAll() {
+        synchronized (pipelines) {
+            pipelines.clear();
+        }
+    }
+
+    private AtlasImagePipeline(MessagePart fullPart, MessagePart previewPart, int declaredWidth, int declaredHeight, int orientation) {
+        this.fullPart = fullPart;
+        this.previewPart = previewPart;
+        this.declaredWidth = declaredWidth;
+        this.declaredHeight = declaredHeight;
+        this.orientation = orientation;
+    }
+
+    /**
+     * @return the best image available now for view of target size: full, preview or image served for
+     * another size. null if there is nothing yet. Missing decodes are requested, preview is downloaded
+     * if needed. Full part is only decoded if its content is ready, see {@link #loadFull()}
+     */
+    public Drawable getDrawable(int targetWidth, int targetHeight) {
+        Bitmap bmp = getFullBitmap(targetWidth, targetHeight);
+        if (bmp == null) bmp = getPreviewBitmap(targetWidth, targetHeight);
+        if (bmp == null) {
+            Object previousId;
+            synchronized (this) {
+                previousId = lastServedId;
+            }
+            if (previousId != null) bmp = (Bitmap) Atlas.imageLoader.getImageFromCache(previousId);
+            if (bmp != null) {
+                // placeholder is displayed again, so it is released with the rest once nobody could show it
+                synchronized (this) {
+                    imageIds.add(previousId);
+                }
+            }
+        }
+        return bmp != null ? new BitmapDrawable(bmp) : null;
+    }
+
+    /** @return full image decoded for target size, null if not yet */
+    public Bitmap getFullBitmap(int targetWidth, int targetHeight) {
+        return getBitmap(fullPart, targetWidth, targetHeight, false);
+    }
+
+    /** @return preview decoded for target size, null if not yet or there is no preview */
+    public Bitmap getPreviewBitmap(int targetWidth, int targetHeight) {
+        if (previewPart == null) return null;
+        return getBitmap(previewPart, targetWidth, targetHeight, true);
+    }
+
+    /**
+     * Drops pending decoding of full image for target size, i.e. when the only view of that size is gone. 
+     * Decoding in progress is completed and cached
+     */
+    public void cancelFull(int targetWidth, int targetHeight) {
+        ImageLoader.SizedId id = sizedIdOf(fullPart, targetWidth, targetHeight);
+        if (Atlas.imageLoader.cancel(id, this)) {
+            synchronized (this) {
+                imageIds.remove(id);
+            }
+        }
+    }
+
+    private ImageLoader.SizedId sizedIdOf(MessagePart part, int targetWidth, int targetHeight) {
+        int[] encodedSize = getEncodedSize(part);
+        // unknown target means original size
+        if (targetWidth <= 0)  targetWidth  = Integer.MAX_VALUE;
+        if (targetHeight <= 0) targetHeight = Integer.MAX_VALUE;
+        // nothing to gain decoding bigger than encoded, so small parts are shared between views of any size
+        if (encodedSize[0] > 0 && encodedSize[1] > 0) {
+            targetWidth  = Math.min(targetWidth,  encodedSize[0]);
+            targetHeight = Math.min(targetHeight, encodedSize[1]);
+        }
+        return ImageLoader.sizedId(part.getId(), targetWidth, targetHeight);
+    }
+
+    private Bitmap getBitmap(MessagePart part, int targetWidth, int targetHeight, boolean download) {
+        int[] encodedSize = getEncodedSize(part);
+        ImageLoader.SizedId id = sizedIdOf(part, targetWidth, targetHeight);
+        Bitmap bmp = (Bitmap) Atlas.imageLoader.getImageFromCache(id);
+        if (bmp != null) {
+            synchronized (this) {
+                imageIds.add(id);
+                lastServedId = id;
+            }
+            return bmp;
+        }
+        if (!part.isContentReady()) {
+            if (download) download(part);
+            // request waits in loader until download completes. Nothing would wake it up otherwise
+            if (!isDownloading(part)) return null;
+        }
+        synchronized (this) {
+            imageIds.add(id);
+        }
+        Atlas.imageLoader.requestImage(id, new MessagePartStreamProvider(part), id.width, id.height
+                , encodedSize[0], encodedSize[1], false, this);
+        return null;
+    }
+
+    /** Starts downloading full part unless it is downloaded already */
+    public void loadFull() {
+        download(fullPart);
+    }
+
+    /** Starts downloading part unless it is downloaded or being downloaded already */
+    public void download(MessagePart part) {
+        synchronized (this) {
+            if (part.isContentReady() || downloads.containsKey(part.getId())) return;
+            downloads.put(part.getId(), 0L);
+        }
+        if (debug) Log.w(TAG, "download() part: " + part.getId() + ", size: " + part.getSize());
+        part.download(progressListener);
+    }
+
+    /** @return true if part is being downloaded by this pipeline */
+    public synchronized boolean isDownloading(MessagePart part) {
+        return downloads.containsKey(part.getId());
+    }
+
+    /** @return download progress of the part [0..1], or -1 if part is not being downloaded */
+    public float getDownloadProgress(MessagePart part) {
+        Long transferred;
+        synchronized (this) {
+            transferred = downloads.get(part.getId());
+        }
+        if (transferred == null) return -1;
+        return part.getSize() > 0 ? 1.0f * transferred / part.getSize() : 0;
+    }
+
+    /**
+     * @return width of full image: declared by 3-part image or learned from decoding. 0 if unknown yet
+     */
+    public synchronized int getOriginalWidth() {
+        return declaredWidth > 0 && declaredHeight > 0 ? declaredWidth : decodedWidth;
+    }
+
+    /** @see #getOriginalWidth() */
+    public synchronized int getOriginalHeight() {
+        return declaredWidth > 0 && declaredHeight > 0 ? declaredHeight : decodedHeight;
+    }
+
+    /**
+     * Dimensions of part's bitmap derived from declared ones, so it could be decoded in one pass.
+     * Rotated images are left for decoder to measure, as not every sender swaps dimensions for them.
+     *
+     * @return int[] {width, height}, zeros if unknown
+     */
+    public int[] getEncodedSize(MessagePart part) {
+        int[] result = new int[2];
+        if (declaredWidth <= 0 || declaredHeight <= 0 || orientation != ImageCell.ORIENTATION_NORMAL) return result;
+        if (part == fullPart) {
+            result[0] = declaredWidth;
+            result[1] = declaredHeight;
+        } else if (part == previewPart && Atlas.MIME_TYPE_IMAGE_JPEG_PREVIEW.equals(part.getMimeType())) {
+            // the same way Atlas.buildPreviewAndSize() scales it
+            if (declaredWidth > declaredHeight) {
+                result[0] = Atlas.PREVIEW_MAX_DIMENSION;
+                result[1] = (int) (1.0 * Atlas.PREVIEW_MAX_DIMENSION * declaredHeight / declaredWidth);
+            } else {
+                result[1] = Atlas.PREVIEW_MAX_DIMENSION;
+                result[0] = (int) (1.0 * Atlas.PREVIEW_MAX_DIMENSION * declaredWidth / declaredHeight);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        if (listener == null) throw new IllegalArgumentException("listener cannot be null");
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    /** When the last listener is removed, pending decodes are deprioritized and served bitmaps could be reused */
+    public void removeListener(Listener listener) {
+        Object[] released;
+        synchronized (this) {
+            if (!listeners.remove(listener) || !listeners.isEmpty()) return;
+            released = imageIds.toArray();
+            imageIds.clear();
+        }
+        for (Object id : released) {
+            Atlas.imageLoader.setVisible(id, false);
+        }
+    }
+
+    @Override
+    public void onImageLoaded(ImageSpec spec) {
+        synchronized (this) {
+            if (spec.id instanceof ImageLoader.SizedId && fullPart.getId().equals(((ImageLoader.SizedId) spec.id).id)) {
+                decodedWidth = spec.originalWidth;
+                decodedHeight = spec.originalHeight;
+            }
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        Listener[] toNotify;
+        synchronized (this) {
+            toNotify = listeners.toArray(new Listener[listeners.size()]);
+        }
+        for (Listener listener : toNotify) {
+            listener.onImageUpdate(this);
+        }
+    }
+
+    private final LayerProgressListener progressListener = new LayerProgressListener() {
+        public void onProgressStart(MessagePart part, Operation operation) {
+        }
+        public void onProgressUpdate(MessagePart part, Operation operation, long transferredBytes) {
+            synchronized (AtlasImagePipeline.this) {
+                downloads.put(part.getId(), transferredBytes);
+            }
+            notifyListeners();
+        }
+        public void onProgressComplete(MessagePart part, Operation operation) {
+            synchronized (AtlasImagePipeline.this) {
+                downloads.remove(part.getId());
+            }
+            if (debug) Log.w(TAG, "onProgressComplete() part: " + part.getId());
+            // decoding requests parked for the content are queued right away
+            MessagePartStreamProvider.notifyContentReady(part);
+            notifyListeners();
+        }
+        public void onProgressError(MessagePart part, Operation operation, Throwable cause) {
+            synchronized (AtlasImagePipeline.this) {
+                downloads.remove(part.getId());
+            }
+            Log.e(TAG, "onProgressError() download failed. part: " + part.getId(), cause);
+            notifyListeners();
+        }
+    };
+
+    public interface Listener {
+        /** Download progress changed or new image is decoded */
+        public void onImageUpdate(AtlasImagePipeline pipeline);
+    }
+}
@@ -561,6 +561,25 @@ public class AtlasImageView2 extends View {
         if (who == this.drawable) return true;
         return super.verifyDrawable(who);
     }
+    
+    /** Animated drawables stop once View is hidden or detached, see {@link GIFDrawable} */
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        if (drawable != null) drawable.setVisible(isShown(), false);
+    }
+    
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (drawable != null) drawable.setVisible(isShown(), false);
+    }
+    
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (drawable != null) drawable.setVisible(false, false);
+    }
 
     public void setBitmap(Bitmap bmp) {
         setDrawable(new BitmapDrawable(bmp));
@@ -568,11 +587,13 @@ public class AtlasImageView2 extends View {
     
     public void setDrawable(Drawable drawable) {
         if (this.drawable != null) {
+            this.drawable.setVisible(false, false);
             this.drawable.setCallback(null);
         }
         this.drawable = drawable;
         if (drawable != null) {
             this.drawable.setCallback(this);
+            this.drawable.setVisible(isShown(), false);
         }
         if (drawable instanceof GIFDrawable) {
             setLayerType(LAYER_TYPE_SOFTWARE, null);
@@ -18,34 +18,35 @@ package com.layer.atlas;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.Layout.Alignment;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
@@ -78,9 +79,15 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     
     public static final boolean CLUSTERED_BUBBLES = false;
     
-    private static final int MESSAGE_TYPE_UPDATE_VALUES = 0;
-    private static final int MESSAGE_REFRESH_UPDATE_ALL = 0;
-    private static final int MESSAGE_REFRESH_UPDATE_DELIVERY = 1;
+    /** Default number of messages loaded at once. See {@link #setPageSize(int)} */
+    public static final int MESSAGES_PAGE_SIZE = 50;
+    /** Older page is requested when first visible cell is closer to the top than this */
+    private static final int PRELOAD_THRESHOLD_CELLS = 10;
+    /** Displayed messages are marked as read when no new rows are shown for this long and scroll is idle */
+    private static final long READ_FLUSH_DELAY_MS = 500;
+    /** failed build is retried after this delay, doubled after each failure in a row */
+    private static final long BUILD_RETRY_MIN_MS = 500;
+    private static final long BUILD_RETRY_MAX_MS = 30 * 1000;
 
     private final DateFormat timeFormat;
     
@@ -89,7 +96,10 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
 
     /** 
      * Message Data main container. Holds messagesData for AtlasMessagesList. 
-     * Particular MessageData could accessed by message.id   
+     * Particular MessageData could accessed by message.id <p>
+     * 
+     * messagesData, messagesOrder and cells are snapshot built by {@link CellsBuild}. 
+     * They are never modified, but replaced at once when new snapshot is built   
      */
     private HashMap<Uri, MessageData> messagesData = new HashMap<Uri, MessageData>();
     
@@ -104,6 +114,11 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
      * */
     private HashSet<Uri> messagesToUpdate = new HashSet<Uri>();
     
+    /** 
+     *  Collects ids of messages that was deleted to remove their cells at next {@link #updateValues()} 
+     * */
+    private HashSet<Uri> messagesToDelete = new HashSet<Uri>();
+    
     /**
      * Cells to render messages (generated in {@link #updateValues()}
      */
@@ -116,13 +131,67 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     private Conversation conv;
     private Query<Message> query;
     /** if query is set instead of conversation - participants needs to be precalculated somewhere else */
-    private final Set<String> participants = new HashSet<String>(); 
+    private Set<String> participants = new HashSet<String>(); 
+    
+    /** number of messages loaded at once. 0 or less disables windowing */
+    private int pageSize = MESSAGES_PAGE_SIZE;
+    /** first message of loaded window. Keeps window in place while messages are inserted above or below */
+    private Uri windowFirstId;
+    /** index of windowFirstId in the latest message ids. Used if windowFirstId is gone */
+    private int windowFrom = -1;
+    /** messages to add (negative) or drop (positive) from the top of window at next {@link #updateValues()} */
+    private int windowShift = 0;
+    /** true if there are messages older than loaded window */
+    private boolean hasOlderMessages = false;
+    /** older page is requested and not loaded yet */
+    private boolean olderPageRequested = false;
+    /** last message of loaded window. null if window lasts till the latest message, so new messages extend it */
+    private Uri windowLastId;
+    /** messages to add to the bottom of window at next {@link #updateValues()}. Used only if window doesn't reach the latest message */
+    private int windowTailShift = 0;
+    /** true if window ends before the latest message, i.e. after {@link #jumpToPart(Uri)} */
+    private boolean hasNewerMessages = false;
+    /** newer page is requested and not loaded yet */
+    private boolean newerPageRequested = false;
+    
+    /** incremented each time new build is requested, so builds in progress know they are stale */
+    private volatile int buildGeneration = 0;
+    private CellsBuild buildInProgress;
+    /** jump to the last message is requested while build is in progress */
+    private boolean jumpAfterBuild = false;
+    /** delay before retrying failed build. 0 until build fails */
+    private long buildRetryDelayMs = 0;
+    /** snapshot is restored from {@link #modelCache}. Next build checks its messages against LayerClient */
+    private boolean reconcilePending = false;
+    
+    /** Models of recently shown conversations. Shared by all AtlasMessagesLists */
+    public static final ModelCache modelCache = new ModelCache();
+    
+    /** text of built messages. The rest of conversation is indexed by {@link #search(String, SearchListener)} */
+    private AtlasTextIndex textIndex = new AtlasTextIndex();
+    /** words to highlight in text cells. null if nothing is highlighted */
+    private String highlightQuery;
+    private static final int HIGHLIGHT_COLOR = 0x80FFC107;
+    /** part to show when build in progress is complete. See {@link #jumpToPart(Uri)} */
+    private Uri jumpToPartAfterBuild;
     
-    private Message latestReadMessage = null;
-    private Message latestDeliveredMessage = null;
+    /** latest delivered and read messages sent by authenticated user */
+    private final Receipts receipts = new Receipts();
+    
+    /** messages displayed to authenticated user to be marked as read */
+    private final ReadTracker reads = new ReadTracker();
+    /** true while list is scrolled by user or fling. Reads are not flushed meanwhile */
+    private boolean scrolling = false;
     
     private ItemClickListener clickListener;
     
+    /** 
+     * Each Cell class gets its own view type, so recycled rows keep views of single cell type only.
+     * Cell classes above {@link #CELL_TYPES_MAX} share one view type 
+     */
+    private static final int CELL_TYPES_MAX = 16;
+    private final HashMap<Class<? extends Cell>, Integer> cellTypes = new HashMap<Class<? extends Cell>, Integer>();
+    
     //styles
     private static final float CELL_CONTAINER_ALPHA_UNSENT  = 0.5f;
     private static final float CELL_CONTAINER_ALPHA_SENT    = 1.0f;
@@ -137,20 +206,23 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     private int otherTextStyle;
     private float otherTextSize;
     private Typeface otherTextTypeface;
+    
+    /** text size of bubbles, as it was in atlas_view_messages_cell_text.xml */
+    private static final float TEXT_SIZE_SP = 16;
+    /** styles to lay text out ahead. See {@link TextCell#onPrepare()} */
+    private AtlasTextLayoutView.TextStyle myTextLayoutStyle;
+    private AtlasTextLayoutView.TextStyle otherTextLayoutStyle;
 
     private int dateTextColor;
     private int avatarTextColor;
     private int avatarBackgroundColor;
     
-    private Bitmap maskSingleBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(24, getContext()), (int)Tools.getPxFromDp(24, getContext()), Config.ARGB_8888);
-    private Paint avatarPaint = new Paint();
-    private Paint maskPaint = new Paint();
+    private int avatarSizePx = (int)Tools.getPxFromDp(24, getContext());
     
     public AtlasMessagesList(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         parseStyle(context, attrs, defStyle);
         this.timeFormat = android.text.format.DateFormat.getTimeFormat(context);
-        setupPaints();
     }
 
     public AtlasMessagesList(Context context, AttributeSet attrs) {
@@ -160,7 +232,6 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     public AtlasMessagesList(Context context) {
         super(context);
         this.timeFormat = android.text.format.DateFormat.getTimeFormat(context);
-        setupPaints();
     }
 
     /** Setup with {@link Atlas.DefaultCellFactory}  */
@@ -176,6 +247,8 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         
         this.client = layerClient;
         this.cellFactory = cellFactory;
+        Atlas.imageLoader.attach(getContext());
+        setupTextStyles();
         LayoutInflater.from(getContext()).inflate(R.layout.atlas_messages_list, this);
         
         // --- message view
@@ -184,29 +257,28 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
             
             public View getView(int position, View convertView, ViewGroup parent) {
                 final Cell cell = cells.get(position);
-                MessagePart part = cell.messagePart;
-                Message message = part.getMessage();
-                String senderId = message.getSender().getUserId();
-                boolean myMessage = client.getAuthenticatedUserId().equals(senderId);
+                // only snapshot fields are read here, see MessageData
+                MessageData msgData = cell.messageData;
+                String senderId = msgData.senderId;
+                boolean myMessage = msgData.isMine;
                 boolean showTheirDecor = participants.size() > 2;
 
                 if (convertView == null) { 
                     convertView = LayoutInflater.from(parent.getContext()).inflate(R.layout.atlas_view_messages_convert, parent, false);
+                    convertView.setTag(new RowHolder(convertView));
                 }
+                RowHolder holder = (RowHolder) convertView.getTag();
+                holder.cell = cell;
                 
-                View spacerTop = convertView.findViewById(R.id.atlas_view_messages_convert_spacer_top);
-                spacerTop.setVisibility(cell.clusterItemId == cell.clusterHeadItemId && !cell.timeHeader ? View.VISIBLE : View.GONE); 
-                
-                View spacerBottom = convertView.findViewById(R.id.atlas_view_messages_convert_spacer_bottom);
-                spacerBottom.setVisibility(cell.clusterTail ? View.VISIBLE : View.GONE); 
+                holder.spacerTop.setVisibility(cell.clusterItemId == cell.clusterHeadItemId && !cell.timeHeader ? View.VISIBLE : View.GONE); 
+                holder.spacerBottom.setVisibility(cell.clusterTail ? View.VISIBLE : View.GONE); 
                 
                 // format date
-                View timeBar = convertView.findViewById(R.id.atlas_view_messages_convert_timebar);
-                TextView timeBarDay = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_timebar_day);
-                TextView timeBarTime = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_timebar_time);
+                View timeBar = holder.timeBar;
+                TextView timeBarDay = holder.timeBarDay;
+                TextView timeBarTime = holder.timeBarTime;
                 if (cell.timeHeader) {
-                    Date sentAt = message.getSentAt();
-                    if (sentAt == null) sentAt = new Date();
+                    Date sentAt = new Date(msgData.sentAt);
 
                     String timeBarDayText = Atlas.formatTimeDay(sentAt);
                     timeBarDay.setText(timeBarDayText);
@@ -217,18 +289,11 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                     timeBar.setVisibility(View.GONE);
                 }
                 
-                View avatarContainer = convertView.findViewById(R.id.atlas_view_messages_convert_avatar_container);
-                TextView textAvatar = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_initials);
-                ImageView avatarImgView = (ImageView) convertView.findViewById(R.id.atlas_view_messages_convert_avatar_img);
-                Bitmap avatarBmp = null;
-                if (avatarImgView.getDrawable() instanceof BitmapDrawable){
-                    BitmapDrawable bitmapDrawable = (BitmapDrawable) avatarImgView.getDrawable();
-                    avatarBmp = bitmapDrawable.getBitmap();
-                } else {
-                    avatarBmp = Bitmap.createBitmap(maskSingleBmp.getWidth(), maskSingleBmp.getHeight(), Config.ARGB_8888);
-                }
-                View spacerRight = convertView.findViewById(R.id.atlas_view_messages_convert_spacer_right);
-                TextView userNameHeader = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_user_name);
+                View avatarContainer = holder.avatarContainer;
+                TextView textAvatar = holder.textAvatar;
+                ImageView avatarImgView = holder.avatarImgView;
+                View spacerRight = holder.spacerRight;
+                TextView userNameHeader = holder.userNameHeader;
                 if (cell.noDecorations) {
                     spacerRight.setVisibility(View.GONE);
                     userNameHeader.setVisibility(View.GONE);
@@ -244,70 +309,61 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                         if (cell.firstUserMsg && showTheirDecor) {
                             userNameHeader.setVisibility(View.VISIBLE);
                             String fullName = (participant != null) ? Atlas.getFullName(participant) : 
-                                    (message.getSender().getName() != null) ? message.getSender().getName():
+                                    (msgData.senderName != null) ? msgData.senderName :
                                     "Unknown User";
                             userNameHeader.setText(fullName);
                         } else {
                             userNameHeader.setVisibility(View.GONE);
                         }
                         
-                        Canvas avatarCanvas = new Canvas(avatarBmp);
-                        avatarCanvas.drawColor(avatarBackgroundColor);
-
                         textAvatar.setVisibility(View.INVISIBLE);
                         avatarImgView.setVisibility(View.INVISIBLE);
                         if (cell.lastUserMsg && participant != null) {
-                            Drawable avatarDrawable = participant.getAvatarDrawable();
                             avatarImgView.setVisibility(View.VISIBLE);
-                            if (avatarDrawable != null) {
-                                avatarDrawable.setBounds(0, 0, avatarBmp.getWidth(), avatarBmp.getHeight());
-                                avatarDrawable.draw(avatarCanvas);
-                            } else {
+                            avatarImgView.setImageBitmap(Atlas.avatarCache.getAvatar(senderId, participant, avatarSizePx, avatarBackgroundColor));
+                            if (participant.getAvatarDrawable() == null) {
                                 textAvatar.setVisibility(View.VISIBLE);
                                 textAvatar.setText(Atlas.getInitials(participant));
                             }
                         }
-                        avatarCanvas.drawBitmap(maskSingleBmp, 0, 0, maskPaint);
                         avatarContainer.setVisibility(showTheirDecor ? View.VISIBLE : View.GONE);
                     }
                 }
-                avatarImgView.setImageBitmap(avatarBmp);
                 
                 // mark unsent messages
-                View cellContainer = convertView.findViewById(R.id.atlas_view_messages_cell_container);
-                cellContainer.setAlpha((myMessage && !message.isSent()) 
+                holder.cellContainer.setAlpha((myMessage && !msgData.isSent) 
                         ? CELL_CONTAINER_ALPHA_UNSENT : CELL_CONTAINER_ALPHA_SENT);
                 
                 // delivery receipt check
-                TextView receiptView = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_delivery_receipt);
+                TextView receiptView = holder.receiptView;
                 receiptView.setVisibility(View.GONE);
-                if (latestDeliveredMessage != null && latestDeliveredMessage.getId().equals(message.getId())) {
+                if (msgData.id.equals(receipts.latestDeliveredId)) {
                     receiptView.setVisibility(View.VISIBLE);
                     receiptView.setText("Delivered");
                 }
-                if (latestReadMessage != null && latestReadMessage.getId().equals(message.getId())) {
+                if (msgData.id.equals(receipts.latestReadId)) {
                     receiptView.setVisibility(View.VISIBLE);
-                    receiptView.setText("Read");
+                    receiptView.setText(participants.size() > 2 ? "Read by " + receipts.latestReadCount : "Read");
                 }
                 
                 // processing cell
-                bindCell(convertView, cell);
+                bindCell(holder, cell);
 
                 // mark displayed message as read
-                if (!myMessage) message.markAsRead();
-                
-                timeBarDay.setTextColor(dateTextColor);
-                timeBarTime.setTextColor(dateTextColor);
-                textAvatar.setTextColor(avatarTextColor);
+                if (!myMessage && reads.onDisplayed(msgData)) scheduleReadsFlush();
                 
                 return convertView;
             }
             
-            private void bindCell(View convertView, final Cell cell) {
+            private void bindCell(RowHolder holder, final Cell cell) {
                 
-                ViewGroup cellContainer = (ViewGroup) convertView.findViewById(R.id.atlas_view_messages_cell_container);
+                ViewGroup cellContainer = holder.cellContainer;
                 
                 View cellRootView = cell.onBind(cellContainer);
+                // rows are recycled per cell type, so the same cell view is usually returned
+                if (cellRootView == holder.cellRootView && cellRootView.getVisibility() == View.VISIBLE) return;
+                holder.cellRootView = cellRootView;
+                
                 boolean alreadyInContainer = false;
                 // cleanUp container
                 cellRootView.setVisibility(View.VISIBLE);
@@ -325,7 +381,11 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
             }
             
             public long getItemId(int position) {
-                return position;
+                return cells.get(position).stableId;
+            }
+            
+            public boolean hasStableIds() {
+                return true;
             }
             public Object getItem(int position) {
                 return cells.get(position);
@@ -334,6 +394,57 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                 return cells.size();
             }
             
+            public int getViewTypeCount() {
+                return CELL_TYPES_MAX + 1;
+            }
+            
+            public int getItemViewType(int position) {
+                Class<? extends Cell> cellClass = cells.get(position).getClass();
+                Integer viewType = cellTypes.get(cellClass);
+                if (viewType == null) {
+                    if (cellTypes.size() == CELL_TYPES_MAX) return CELL_TYPES_MAX;   // shared by the rest of cell types
+                    viewType = cellTypes.size();
+                    cellTypes.put(cellClass, viewType);
+                }
+                return viewType;
+            }
+            
+        });
+        
+        messagesList.setOnScrollListener(new OnScrollListener() {
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (pageSize <= 0 || totalItemCount == 0) return;
+                if (hasOlderMessages && !olderPageRequested && firstVisibleItem < PRELOAD_THRESHOLD_CELLS) {
+                    if (debug) Log.w(TAG, "onScroll() requesting older page, first visible: " + firstVisibleItem);
+                    olderPageRequested = true;
+                    windowShift -= pageSize;
+                    requestRefreshValues(true, false);
+                }
+                if (hasNewerMessages && !newerPageRequested && firstVisibleItem + visibleItemCount > totalItemCount - PRELOAD_THRESHOLD_CELLS) {
+                    if (debug) Log.w(TAG, "onScroll() requesting newer page, last visible: " + (firstVisibleItem + visibleItemCount - 1));
+                    newerPageRequested = true;
+                    windowTailShift += pageSize;
+                    requestRefreshValues(true, false);
+                }
+            }
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                scrolling = scrollState != SCROLL_STATE_IDLE;
+                if (scrolling) {
+                    refreshHandler.removeCallbacks(FLUSH_READS);
+                } else {
+                    trimFarPages();
+                    scheduleReadsFlush();
+                }
+            }
+        });
+        
+        messagesList.setRecyclerListener(new RecyclerListener() {
+            public void onMovedToScrapHeap(View view) {
+                RowHolder holder = (RowHolder) view.getTag();
+                if (holder == null || holder.cell == null) return;
+                holder.cell.onUnbind();
+                holder.cell = null;
+            }
         });
         
         messagesList.setOnItemClickListener(new OnItemClickListener() {
@@ -349,23 +460,6 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         updateValues();
     }
     
-    private void setupPaints() {
-        avatarPaint.setAntiAlias(true);
-        avatarPaint.setDither(true);
-        
-        maskPaint.setAntiAlias(true);
-        maskPaint.setDither(true);
-        maskPaint.setXfermode(new PorterDuffXfermode(Mode.DST_IN));
-        
-        Paint paintCircle = new Paint();
-        paintCircle.setStyle(Style.FILL_AND_STROKE);
-        paintCircle.setColor(Color.CYAN);
-        paintCircle.setAntiAlias(true);
-        
-        Canvas maskSingleCanvas = new Canvas(maskSingleBmp);
-        maskSingleCanvas.drawCircle(0.5f * maskSingleBmp.getWidth(), 0.5f * maskSingleBmp.getHeight(), 0.5f * maskSingleBmp.getWidth(), paintCircle);
-    }
-
     public void parseStyle(Context context, AttributeSet attrs, int defStyle) {
         TypedArray ta = context.getTheme().obtainStyledAttributes(attrs, R.styleable.AtlasMessageList, R.attr.AtlasMessageList, defStyle);
         this.myTextColor = ta.getColor(R.styleable.AtlasMessageList_myTextColor, context.getResources().getColor(R.color.atlas_text_black));
@@ -392,7 +486,17 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     private void applyStyle() {
         messagesAdapter.notifyDataSetChanged();
     }
+    
+    private void setupTextStyles() {
+        float textSizePx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP, getResources().getDisplayMetrics());
+        myTextLayoutStyle    = new AtlasTextLayoutView.TextStyle(textSizePx, myTextTypeface, myTextStyle, myTextColor, Alignment.ALIGN_OPPOSITE);
+        otherTextLayoutStyle = new AtlasTextLayoutView.TextStyle(textSizePx, otherTextTypeface, otherTextStyle, otherTextColor, Alignment.ALIGN_NORMAL);
+    }
 
+    /**
+     * Builds Cells for messages. Cells are built in background (see {@link AtlasMessagesList#updateValues()}), 
+     * so implementations are called from worker thread and must not touch any views
+     */
     public static abstract class CellFactory {
         public abstract void buildCellForMessage(Message msg, List<Cell> result);
     }
@@ -401,241 +505,955 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         cellFactory.buildCellForMessage(msg, result);
     }
     
+    /**
+     * Starts to build cells for current conversation or query in background. Build in progress, 
+     * if any, is cancelled. Result is swapped into adapter at once on main thread
+     */
     public void updateValues() {
+        cancelBuild();
+        refreshHandler.removeCallbacks(RETRY_BUILD);
+        
+        CellsBuild build = new CellsBuild(++buildGeneration, messagesToUpdate, messagesToDelete, windowShift, windowTailShift);
+        messagesToUpdate = new HashSet<Uri>();
+        messagesToDelete = new HashSet<Uri>();
+        windowShift = 0;
+        windowTailShift = 0;
+        
+        buildInProgress = build;
+        getBuildHandler().post(build);
+        if (debug) Log.w(TAG, "updateValues() build scheduled: " + build.generation);
+    }
+    
+    private final Runnable RETRY_BUILD = new Runnable() {
+        public void run() {
+            updateValues();
+        }
+    };
+    
+    /** Cancels build in progress. Its changes and window shift are returned back to be applied by next build */
+    private void cancelBuild() {
+        CellsBuild build = buildInProgress;
+        if (build == null) return;
+        buildInProgress = null;
+        buildGeneration++;
+        messagesToUpdate.addAll(build.toUpdate);
+        messagesToDelete.addAll(build.toDelete);
+        windowShift += build.windowShift;
+        windowTailShift += build.windowTailShift;
+        if (debug) Log.w(TAG, "cancelBuild() cancelled: " + build.generation);
+    }
+    
+    /** Swaps built snapshot into adapter. Called on main thread */
+    private void onBuildComplete(CellsBuild build) {
+        if (build != buildInProgress) {
+            if (debug) Log.w(TAG, "onBuildComplete() stale build is dropped: " + build.generation);
+            return;
+        }
+        buildInProgress = null;
+        if (!build.succeeded) {
+            messagesToUpdate.addAll(build.toUpdate);
+            messagesToDelete.addAll(build.toDelete);
+            windowShift += build.windowShift;
+            windowTailShift += build.windowTailShift;
+            if (build.failure != null) {
+                // unlike cancelled build, nothing else would bring changes of failed one. Back off in case it fails for good
+                buildRetryDelayMs = buildRetryDelayMs == 0 ? BUILD_RETRY_MIN_MS : Math.min(buildRetryDelayMs * 2, BUILD_RETRY_MAX_MS);
+                refreshHandler.removeCallbacks(RETRY_BUILD);
+                refreshHandler.postDelayed(RETRY_BUILD, buildRetryDelayMs);
+                Log.e(TAG, "onBuildComplete() build " + build.generation + " failed, retrying in " + buildRetryDelayMs + " ms", build.failure);
+            }
+            return;
+        }
+        buildRetryDelayMs = 0;
         long started = System.currentTimeMillis();
         
-        // cells are just order keeper. order is going to be changed while new info arrives 
-        cells.clear();
-        messagesOrder.clear();
+        // remember what is on top of the screen to keep it there if cells are added or removed above
+        int firstVisible = messagesList.getFirstVisiblePosition();
+        Cell firstVisibleCell = firstVisible < cells.size() && messagesList.getChildCount() > 0 ? cells.get(firstVisible) : null;
+        int firstVisibleTop = firstVisibleCell != null ? messagesList.getChildAt(0).getTop() : 0;
+        
+        messagesData = build.data;
+        messagesOrder = build.order;
+        cells = build.cells;
+        participants = build.participants;
+        if (build.reconcile) reconcilePending = false;
         
-        List<Uri> msgIds = null;
-        if (conv != null) {
-            msgIds = client.getMessageIds(conv);
-        } else if (query != null) {
-            msgIds = client.executeQueryForIds(query);
+        windowFirstId = build.resultWindowFirstId;
+        windowFrom = build.resultWindowFrom;
+        hasOlderMessages = build.resultHasOlderMessages;
+        olderPageRequested = false;
+        windowLastId = build.resultWindowLastId;
+        hasNewerMessages = build.resultHasNewerMessages;
+        newerPageRequested = false;
+        
+        // apply recalculated clusters. Rows are re-bound only if their cell or its flags are changed
+        int rowsChanged = 0;
+        for (int i = 0; i < build.clusters.size(); i++) {
+            int position = build.clusters.positions[i];
+            Cell cell = cells.get(position);
+            boolean changed = cell.applyCluster(position, build.clusters.heads[i], build.clusters.flags[i]);
+            if (!build.structureChanged && (changed || build.baseCells.get(position) != cell)) {
+                rebindRow(position);
+                rowsChanged++;
+            }
         }
         
-        if (msgIds == null || msgIds.size() == 0) {
-            this.messagesData.clear();
-            this.participants.clear();
-            this.messagesAdapter.notifyDataSetChanged();
-            return;
-        };
+        // per-recipient positions are updated from changed messages only. Snapshot of another order could reuse MessageData never tracked 
+        if (!receipts.tracked) {
+            receipts.trackAll(messagesOrder);
+        } else {
+            for (Uri msgId : build.toDelete) {
+                receipts.forget(msgId, messagesOrder);
+            }
+            for (MessageData msgData : build.built) {
+                receipts.track(msgData);
+            }
+        }
+        // rows gaining or losing receipt are re-bound as well, unless everything is refreshed anyway 
+        updateDeliveryStatus(!build.structureChanged);
+        if (build.structureChanged) {
+            messagesAdapter.notifyDataSetChanged();
+        }
+        
+        if (jumpToPartAfterBuild != null) {
+            int position = positionOfPart(jumpToPartAfterBuild);
+            jumpToPartAfterBuild = null;
+            jumpAfterBuild = false;
+            if (position != -1) messagesList.setSelection(position);
+        } else if (build.jumpToTheEnd || jumpAfterBuild) {
+            jumpAfterBuild = false;
+            jumpToLastMessage();
+        } else if (firstVisibleCell != null && (firstVisible >= cells.size() || cells.get(firstVisible) != firstVisibleCell)) {
+            int newPosition = cells.indexOf(firstVisibleCell);
+            if (newPosition != -1) messagesList.setSelectionFromTop(newPosition, firstVisibleTop);
+        }
+        if (debug) Log.w(TAG, "onBuildComplete() build: " + build.generation + " swapped in: " + (System.currentTimeMillis() - started) + " ms, cells: " + cells.size() 
+                + ", clusters recalculated: " + build.clusters.size() + ", rows changed: " + rowsChanged + ", structure changed: " + build.structureChanged);
+    }
+    
+    /**
+     * Drops cells of messages far above the viewport, keeping one page above first visible cell.
+     * Nothing happens unless at least a page could be dropped
+     */
+    private void trimFarPages() {
+        if (pageSize <= 0 || olderPageRequested) return;
+        int keepFrom = messagesList.getFirstVisiblePosition() - pageSize;
+        if (keepFrom <= 0) return;
+        
+        int messagesToDrop = 0;
+        int cellsToDrop = 0;
+        for (int i = 0; i < messagesOrder.size(); i++) {
+            int msgCells = messagesOrder.get(i).cells.size();
+            if (cellsToDrop + msgCells > keepFrom) break;
+            cellsToDrop += msgCells;
+            messagesToDrop++;
+        }
+        if (messagesToDrop < pageSize) return;
+        
+        if (debug) Log.w(TAG, "trimFarPages() dropping messages: " + messagesToDrop + ", cells: " + cellsToDrop);
+        windowShift += messagesToDrop;
+        requestRefreshValues(true, false);
+    }
+    
+    /** 
+     * Number of messages to load at once. AtlasMessagesList starts with the latest page and loads older 
+     * pages while scrolling up. Pages far from the viewport are dropped when scroll stops   
+     * 
+     * @param pageSize - messages per page. 0 or less to load the whole conversation at once
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+    
+    public int getPageSize() {
+        return pageSize;
+    }
+    
+    /** Flushes displayed messages after {@link #READ_FLUSH_DELAY_MS}. Every call postpones flush, it is postponed while scrolling as well */
+    private void scheduleReadsFlush() {
+        refreshHandler.removeCallbacks(FLUSH_READS);
+        if (scrolling || reads.pending.isEmpty()) return;
+        refreshHandler.postDelayed(FLUSH_READS, READ_FLUSH_DELAY_MS);
+    }
+    
+    private final Runnable FLUSH_READS = new Runnable() {
+        public void run() {
+            int marked = reads.flush();
+            if (debug) Log.w(TAG, "FLUSH_READS marked as read: " + marked + ", tracked: " + reads.marked.size());
+        }
+    };
+    
+    /** Re-binds row at position if it is visible. Invisible rows would be bound when scrolled in */
+    private void rebindRow(int position) {
+        int firstVisible = messagesList.getFirstVisiblePosition();
+        if (position < firstVisible || position > messagesList.getLastVisiblePosition()) return;
+        View row = messagesList.getChildAt(position - firstVisible);
+        if (row != null) messagesAdapter.getView(position, row, messagesList);
+    }
+    
+    private static Handler buildHandler;
+    
+    /** Single worker thread shared by all AtlasMessagesLists to build cells */
+    private static synchronized Handler getBuildHandler() {
+        if (buildHandler == null) {
+            HandlerThread buildThread = new HandlerThread("AtlasCellsBuilder", Process.THREAD_PRIORITY_BACKGROUND);
+            buildThread.start();
+            buildHandler = new Handler(buildThread.getLooper());
+        }
+        return buildHandler;
+    }
+    
+    /**
+     * Builds new snapshot of messages, cells and clusters on worker thread. Current snapshot 
+     * is used as a base and is never modified, so adapter could keep rendering it meanwhile.
+     * Build checks for cancellation between messages and gives up if newer build is requested 
+     */
+    private final class CellsBuild implements Runnable {
+        final int generation;
+        final HashSet<Uri> toUpdate;
+        final HashSet<Uri> toDelete;
+        final int windowShift;
+        final int windowTailShift;
+        
+        // base snapshot and window
+        private final Conversation buildConv = conv;
+        private final Query<Message> buildQuery = query;
+        private final HashMap<Uri, MessageData> baseData = messagesData;
+        private final ArrayList<MessageData> baseOrder = messagesOrder;
+        final ArrayList<Cell> baseCells = AtlasMessagesList.this.cells;
+        private final Set<String> baseParticipants = AtlasMessagesList.this.participants;
+        private final int buildPageSize = pageSize;
+        private final Uri baseWindowFirstId = windowFirstId;
+        private final int baseWindowFrom = windowFrom;
+        private final Uri baseWindowLastId = windowLastId;
+        /** base snapshot is restored from cache and could miss changes */
+        final boolean reconcile = reconcilePending;
+        private final AtlasTextIndex buildIndex = textIndex;
+        
+        // results
+        volatile boolean succeeded = false;
+        /** thrown by build, i.e. by CellFactory or Cell.onPrepare(). null if build succeeded or is cancelled */
+        volatile Throwable failure;
+        HashMap<Uri, MessageData> data;
+        ArrayList<MessageData> order;
+        ArrayList<Cell> cells;
+        HashSet<String> participants;
+        Uri resultWindowFirstId;
+        int resultWindowFrom = -1;
+        boolean resultHasOlderMessages;
+        /** null if window lasts till the latest message */
+        Uri resultWindowLastId;
+        boolean resultHasNewerMessages;
+        boolean jumpToTheEnd;
+        /** cells with recalculated clusters */
+        Clustering clusters;
+        /** 
+         * true if cells are added, removed or reordered, or nothing is patched and whole list is to be refreshed. 
+         * false if cells are only replaced in place and only changed rows are to be re-bound 
+         */
+        boolean structureChanged = true;
+        /** cells around patched positions. Only their clusters are recalculated */
+        private final ArrayList<Cell> touched = new ArrayList<Cell>();
+        /** MessageData built by this build. Their receipts are tracked, see {@link Receipts#track(MessageData)} */
+        final ArrayList<MessageData> built = new ArrayList<MessageData>();
+        
+        CellsBuild(int generation, HashSet<Uri> toUpdate, HashSet<Uri> toDelete, int windowShift, int windowTailShift) {
+            this.generation = generation;
+            this.toUpdate = toUpdate;
+            this.toDelete = toDelete;
+            this.windowShift = windowShift;
+            this.windowTailShift = windowTailShift;
+        }
         
-        // check last message is added
-        boolean jumpToTheEnd = false;
-        Uri lastMessageId = msgIds.get(msgIds.size() - 1);
-        if ( ! messagesData.containsKey(lastMessageId) ) {
-            jumpToTheEnd = true;
+        boolean isCancelled() {
+            return generation != buildGeneration;
         }
-        if (debug) Log.w(TAG, "updateValues() jump: " + jumpToTheEnd + ", lastMessage: " + lastMessageId);
         
-        // consider each cached messageData to remove
-        HashSet<Uri> ids2Delete = new HashSet<Uri>(messagesData.keySet());
+        public void run() {
+            if (isCancelled()) return;
+            try {
+                succeeded = build();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            if (isCancelled()) return;
+            refreshHandler.post(new Runnable() {
+                public void run() {
+                    onBuildComplete(CellsBuild.this);
+                }
+            });
+        }
         
-        ArrayList<Message> messagesUpdated = new ArrayList<Message>();
-        // rebuild messageOrder and cells with cached data
-        for (Uri msgId : msgIds) {
-            MessageData msgData = messagesData.get(msgId);
-            // rebuild messageData if new or updated
-            if (msgData == null || messagesToUpdate.contains(msgId)) {
-                Message msg = client.getMessage(msgId);
-                msgData = new MessageData(msg);
-                buildCellForMessage(msg, msgData.cells);
-                messagesData.put(msgId, msgData);
-                messagesUpdated.add(msg);
+        /** @return false if build was cancelled */
+        private boolean build() {
+            long started = System.currentTimeMillis();
+            
+            List<Uri> msgIds = null;
+            if (buildConv != null) {
+                msgIds = client.getMessageIds(buildConv);
+            } else if (buildQuery != null) {
+                msgIds = client.executeQueryForIds(buildQuery);
+            }
+            
+            if (msgIds == null || msgIds.size() == 0) {
+                data = new HashMap<Uri, MessageData>();
+                order = new ArrayList<MessageData>();
+                cells = new ArrayList<Cell>();
+                participants = new HashSet<String>();
+                clusters = new Clustering(0);
+                return true;
+            };
+            
+            // check last message is added. Window ending above it is not jumped away from
+            Uri lastMessageId = msgIds.get(msgIds.size() - 1);
+            msgIds = windowOf(msgIds);
+            jumpToTheEnd = resultWindowLastId == null && ! baseData.containsKey(lastMessageId);
+            if (debug) Log.w(TAG, "build() jump: " + jumpToTheEnd + ", lastMessage: " + lastMessageId);
+            
+            if (reconcile) reconcile();
+            if (isCancelled()) return false;
+            for (Uri msgId : toDelete) {
+                buildIndex.removeMessage(msgId);
             }
             
-            messagesOrder.add(msgData);
-            cells.addAll(msgData.cells);
-            // message appears in query results? Keep them in cache
-            ids2Delete.remove(msgId);
+            data = new HashMap<Uri, MessageData>(baseData);
+            // conversation order is stable, so changes could be applied as patches. Query results could be reordered anyhow
+            boolean patched = false;
+            if (buildConv != null && baseOrder.size() > 0) {
+                order = new ArrayList<MessageData>(baseOrder);
+                cells = new ArrayList<Cell>(baseCells);
+                patched = applyChanges(msgIds);
+                if (!patched && debug) Log.w(TAG, "build() patched order doesn't match message ids, rebuilding...");
+            }
+            if (isCancelled()) return false;
+            if (!patched && !rebuild(msgIds)) return false;
+            if (debug) Log.w(TAG, "build() change applied in: " + (System.currentTimeMillis() - started) + " ms, patched: " + patched);
+            
+            // rebuild participants list (for conv - pick from conversation, from query - scan for everyone)
+            participants = new HashSet<String>();
+            if (buildConv != null) {
+                participants.addAll(buildConv.getParticipants());
+            } else { /* query != null */
+                for (MessageData msgData : order) {
+                    if (msgData.senderId != null) participants.add(msgData.senderId);
+                }
+            }
+            
+            if (patched) {
+                structureChanged = touched.isEmpty() || cells.size() != baseCells.size() || !participants.equals(baseParticipants);
+                clusters = Clustering.calculate(cells, touched);
+            } else {
+                clusters = Clustering.calculate(cells);
+            }
+            if (debug) Log.d(TAG, "build() parts finished in: " + (System.currentTimeMillis() - started) + " ms");
+            return !isCancelled();
+        }
+        
+        /**
+         * Picks loaded window from all message ids. Window starts from {@link AtlasMessagesList#windowFirstId}, 
+         * moved by {@link AtlasMessagesList#windowShift}, and lasts till the latest message, so new messages extend it.
+         * Window set by {@link AtlasMessagesList#jumpToPart(Uri)} ends at {@link AtlasMessagesList#windowLastId} 
+         * instead, moved by {@link AtlasMessagesList#windowTailShift}, until it reaches the latest message 
+         * 
+         * @return sublist of msgIds to build cells for
+         */
+        private List<Uri> windowOf(List<Uri> msgIds) {
+            if (buildPageSize <= 0) {
+                resultHasOlderMessages = false;
+                resultHasNewerMessages = false;
+                return msgIds;
+            }
+            int to = msgIds.size() - 1;
+            int last = baseWindowLastId != null ? msgIds.lastIndexOf(baseWindowLastId) : -1;
+            // last message is gone? load till the latest then
+            if (last != -1) to = Math.min(last + windowTailShift, to);
+            
+            int from = baseWindowFirstId != null ? msgIds.lastIndexOf(baseWindowFirstId) : -1;
+            if (from == -1 && baseWindowFirstId != null && baseWindowFrom != -1) {
+                from = Math.min(baseWindowFrom, msgIds.size() - 1);      // first message is gone, stay close to where we were 
+            }
+            if (from == -1) {
+                from = Math.max(0, msgIds.size() - buildPageSize);      // start with the latest page
+            }
+            from = Math.max(0, Math.min(from + windowShift, to));
+            
+            resultWindowFrom = from;
+            resultWindowFirstId = msgIds.get(from);
+            resultHasOlderMessages = from > 0;
+            resultHasNewerMessages = to < msgIds.size() - 1;
+            resultWindowLastId = resultHasNewerMessages ? msgIds.get(to) : null;
+            if (debug) Log.w(TAG, "windowOf() window: " + from + ".." + (to + 1) + " of " + msgIds.size());
+            return msgIds.subList(from, to + 1);
+        }
+        
+        /**
+         * Checks base snapshot against LayerClient. Messages changed while snapshot was cached are added 
+         * to {@link #toUpdate}, gone ones to {@link #toDelete}. New messages are picked up as usual
+         */
+        private MessageData buildData(Uri msgId) {
+            MessageData msgData = buildMessageData(msgId, buildIndex);
+            built.add(msgData);
+            return msgData;
         }
         
-        // remove all cached messages that absents in current query results
-        messagesData.keySet().removeAll(ids2Delete);
-        messagesToUpdate.clear();
-        if (debug) Log.w(TAG, "updateValues() change applied in: " + (System.currentTimeMillis() - started) + " ms, messageData removed: " + ids2Delete.size());
+        private void reconcile() {
+            String userId = client.getAuthenticatedUserId();
+            int changed = 0;
+            for (MessageData msgData : baseOrder) {
+                if (isCancelled()) return;
+                Message msg = client.getMessage(msgData.id);
+                if (msg == null) {
+                    toDelete.add(msgData.id);
+                    changed++;
+                } else if (!msgData.sameState(new MessageData(msg, userId))) {
+                    toUpdate.add(msgData.id);
+                    changed++;
+                }
+            }
+            if (debug) Log.w(TAG, "reconcile() messages: " + baseOrder.size() + ", changed: " + changed);
+        }
         
-        // rebuild participants list (for conv - pick from conversation, from query - scan for everyone)
-        participants.clear();
-        if (conv != null) {
-            participants.addAll(conv.getParticipants());
-        } else { /* query != null */
-            for (MessageData msgData : messagesOrder) {
-                String userId = msgData.msg.getSender().getUserId();
-                if (userId != null) participants.add(userId);
+        /**
+         * Rebuilds order and cells from scratch. Cached {@link MessageData} is reused unless message 
+         * is listed in {@link #toUpdate}
+         * 
+         * @return false if build was cancelled
+         */
+        private boolean rebuild(List<Uri> msgIds) {
+            order = new ArrayList<MessageData>(msgIds.size());
+            cells = new ArrayList<Cell>(msgIds.size());
+            HashMap<Uri, MessageData> rebuiltData = new HashMap<Uri, MessageData>();
+            
+            // rebuild order and cells with cached data. Messages absent in current results are not picked
+            for (Uri msgId : msgIds) {
+                if (isCancelled()) return false;
+                MessageData msgData = data.get(msgId);
+                // rebuild messageData if new or updated
+                if (msgData == null || toUpdate.contains(msgId)) {
+                    msgData = buildData(msgId);
+                }
+                rebuiltData.put(msgId, msgData);
+                order.add(msgData);
+                cells.addAll(msgData.cells);
             }
+            if (debug) Log.w(TAG, "rebuild() messages: " + order.size() + ", messageData removed: " + (data.size() - rebuiltData.size()));
+            data = rebuiltData;
+            return true;
         }
-
-        updateDeliveryStatus(messagesOrder);
         
-        // calculate heads/tails
-        int currentItem = 0;
-        int clusterId = currentItem;
-        String currentUserId = null;
-        long lastMessageTime = 0;
-        Calendar calLastMessage = Calendar.getInstance();
-        Calendar calCurrent = Calendar.getInstance();
-        long clusterTimeSpan = 60 * 1000; // 1 minute
-        long oneHourSpan = 60 * 60 * 1000; // 1 hour
-        for (int i = 0; i < cells.size(); i++) {
-            Cell cell = cells.get(i);
-            cell.reset();
-            boolean newCluster = false;
-            String senderId = cell.messagePart.getMessage().getSender().getUserId();
-            boolean isCurrentUser = (senderId != null && senderId.equals(currentUserId));
-            if (!isCurrentUser) {
-                newCluster = true;
+        /**
+         * Applies {@link #toDelete} and {@link #toUpdate} to order and cells as positional patches. 
+         * Lookups are started from the tail, so cost depends on number of changes and their distance 
+         * from the latest message, not on conversation length  
+         * 
+         * @return false if patched order doesn't match msgIds and full rebuild is required
+         */
+        private boolean applyChanges(List<Uri> msgIds) {
+            // deleted messages
+            for (Uri msgId : toDelete) {
+                MessageData msgData = data.remove(msgId);
+                if (msgData == null) continue;
+                int orderIdx = order.lastIndexOf(msgData);
+                if (orderIdx == -1) return false;
+                int cellIdx = cellOffset(orderIdx);
+                cells.subList(cellIdx, cellIdx + msgData.cells.size()).clear();
+                order.remove(orderIdx);
+                touch(cellIdx, cellIdx);
             }
-            Date sentAt = cell.messagePart.getMessage().getSentAt();
-            if (sentAt == null) sentAt = new Date();
             
-            if (sentAt.getTime() - lastMessageTime > clusterTimeSpan) {
-                newCluster = true;
+            // updated messages are replaced in place, new ones are collected to be inserted in ascending order
+            ArrayList<Integer> insertPositions = new ArrayList<Integer>();
+            HashMap<Integer, Uri> insertIds = new HashMap<Integer, Uri>();
+            for (Uri msgId : toUpdate) {
+                if (toDelete.contains(msgId)) continue;
+                MessageData oldData = data.get(msgId);
+                if (oldData == null) {
+                    int position = msgIds.lastIndexOf(msgId);
+                    if (position == -1) continue;           // message from another conversation or already gone
+                    insertPositions.add(position);
+                    insertIds.put(position, msgId);
+                    continue;
+                }
+                int orderIdx = order.lastIndexOf(oldData);
+                if (orderIdx == -1) return false;
+                MessageData msgData = buildData(msgId);
+                int cellIdx = cellOffset(orderIdx);
+                List<Cell> oldCells = cells.subList(cellIdx, cellIdx + oldData.cells.size());
+                oldCells.clear();
+                oldCells.addAll(msgData.cells);
+                order.set(orderIdx, msgData);
+                data.put(msgId, msgData);
+                touch(cellIdx, cellIdx + msgData.cells.size());
             }
             
-            if (newCluster) {
-                clusterId = currentItem;
-                if (i > 0) cells.get(i - 1).clusterTail = true;
+            // inserting from top to bottom keeps order aligned with msgIds above each insert position
+            Collections.sort(insertPositions);
+            for (Integer position : insertPositions) {
+                if (position > order.size()) return false;
+                Uri msgId = insertIds.get(position);
+                MessageData msgData = buildData(msgId);
+                int cellIdx = cellOffset(position);
+                cells.addAll(cellIdx, msgData.cells);
+                order.add(position, msgData);
+                data.put(msgId, msgData);
+                touch(cellIdx, cellIdx + msgData.cells.size());
             }
             
-            // last message from user
-            if (!isCurrentUser) {
-                cell.firstUserMsg = true;
-                if (i > 0) cells.get(i - 1).lastUserMsg = true;
+            if (debug) Log.w(TAG, "applyChanges() deleted: " + toDelete.size() + ", updated: " + (toUpdate.size() - insertPositions.size()) + ", inserted: " + insertPositions.size());
+            
+            // check against SDK's order, message by message. Mismatch means we missed some change or window is moved
+            if (order.size() != msgIds.size()) return false;
+            if (data.size() != msgIds.size()) return false;
+            for (int i = 0; i < msgIds.size(); i++) {
+                if (!order.get(i).id.equals(msgIds.get(i))) return false;
             }
-            if (i > 0 && cells.get(i -1).noDecorations) {
-                cell.lastUserMsg = true;
+            return true;
+        }
+        
+        /** @return index in cells of the first cell of order[orderIdx]. Counts from the tail */
+        private int cellOffset(int orderIdx) {
+            int offset = cells.size();
+            for (int i = order.size() - 1; i >= orderIdx; i--) {
+                offset -= order.get(i).cells.size();
             }
+            return offset;
+        }
+        
+        /** Remembers cells [from, to) and their neighbours as ones to recalculate clusters for */
+        private void touch(int from, int to) {
+            for (int i = Math.max(0, from - 1); i <= to && i < cells.size(); i++) {
+                touched.add(cells.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Calculates cluster heads, tails, user boundaries and time headers. Flags of a cell depend only on 
+     * the cell and its neighbours, so after patches only cells around changed positions are recalculated <p>
+     * 
+     * Result is a list of positions with their heads and flags. It is applied to cells on main thread 
+     * with {@link Cell#applyCluster(int, int, int)}
+     */
+    private static final class Clustering {
+        private static final long CLUSTER_TIME_SPAN = 60 * 1000;         // 1 minute
+        private static final long TIME_HEADER_SPAN  = 60 * 60 * 1000;    // 1 hour
+        
+        static final int FLAG_TAIL           = 1;
+        static final int FLAG_TIME_HEADER    = 1 << 1;
+        static final int FLAG_FIRST_USER_MSG = 1 << 2;
+        static final int FLAG_LAST_USER_MSG  = 1 << 3;
+        
+        final int[] positions;
+        final int[] heads;
+        final int[] flags;
+        private int size = 0;
+        
+        private Clustering(int capacity) {
+            positions = new int[capacity];
+            heads = new int[capacity];
+            flags = new int[capacity];
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        private void add(List<Cell> cells, int position) {
+            positions[size] = position;
+            heads[size] = headOf(cells, position);
+            flags[size] = flagsOf(cells, position);
+            size++;
+        }
+        
+        /** recalculates all cells */
+        static Clustering calculate(List<Cell> cells) {
+            Clustering result = new Clustering(cells.size());
+            int head = 0;
+            for (int i = 0; i < cells.size(); i++) {
+                if (isHead(cells, i)) head = i;
+                result.positions[i] = i;
+                result.heads[i] = head;
+                result.flags[i] = flagsOf(cells, i);
+            }
+            result.size = cells.size();
+            return result;
+        }
+        
+        /** 
+         * Recalculates touched cells only. They are searched from the tail, so cost depends on number 
+         * of touched cells and their distance from the latest message 
+         */
+        static Clustering calculate(List<Cell> cells, List<Cell> touched) {
+            if (touched.size() > cells.size() / 2) return calculate(cells);
             
-            
-            // check time header is needed
-            if (sentAt.getTime() - lastMessageTime > oneHourSpan) {
-                cell.timeHeader = true;
+            TreeSet<Integer> positions = new TreeSet<Integer>();
+            for (Cell cell : touched) {
+                int position = cells.lastIndexOf(cell);
+                if (position != -1) positions.add(position);     // could be removed by later patch
             }
-            calCurrent.setTime(sentAt);
-            if (calCurrent.get(Calendar.DAY_OF_YEAR) != calLastMessage.get(Calendar.DAY_OF_YEAR)) {
-                cell.timeHeader = true;
+            Clustering result = new Clustering(positions.size());
+            for (Integer position : positions) {
+                result.add(cells, position);
             }
+            return result;
+        }
+        
+        /** @return true if cell starts new cluster: sender is changed or previous message is more than a minute older */
+        static boolean isHead(List<Cell> cells, int position) {
+            if (position == 0) return true;
+            Cell prev = cells.get(position - 1);
+            Cell cell = cells.get(position);
+            if (!sameUser(prev, cell)) return true;
+            return cell.messageData.sentAt - prev.messageData.sentAt > CLUSTER_TIME_SPAN;
+        }
+        
+        static int headOf(List<Cell> cells, int position) {
+            while (!isHead(cells, position)) position--;
+            return position;
+        }
+        
+        static int flagsOf(List<Cell> cells, int position) {
+            Cell prev = position > 0 ? cells.get(position - 1) : null;
+            Cell cell = cells.get(position);
+            Cell next = position < cells.size() - 1 ? cells.get(position + 1) : null;
             
-            cell.clusterHeadItemId = clusterId;
-            cell.clusterItemId = currentItem++;
+            int flags = 0;
+            // last one is always a tail and a last message from user
+            if (next == null || isHead(cells, position + 1)) flags |= FLAG_TAIL;
+            if (next == null || !sameUser(cell, next))      flags |= FLAG_LAST_USER_MSG;
+            if (prev != null && prev.noDecorations)         flags |= FLAG_LAST_USER_MSG;
+            if (prev == null || !sameUser(prev, cell))      flags |= FLAG_FIRST_USER_MSG;
             
-            currentUserId = senderId;
-            if (cell.noDecorations) currentUserId = null;
-            lastMessageTime = sentAt.getTime();
-            calLastMessage.setTime(sentAt);
-            if (false && debug) Log.d(TAG, "updateValues() item: " + cell);
+            // check time header is needed
+            if (prev == null 
+                    || cell.messageData.sentAt - prev.messageData.sentAt > TIME_HEADER_SPAN 
+                    || cell.messageData.sentDay != prev.messageData.sentDay) {
+                flags |= FLAG_TIME_HEADER;
+            }
+            return flags;
         }
         
-        cells.get(cells.size() - 1).lastUserMsg = true; // last one is always a last message from user
-        cells.get(cells.size() - 1).clusterTail = true; // last one is always a tail
+        /** cells without decorations never continue user's sequence */
+        private static boolean sameUser(Cell prev, Cell cell) {
+            if (prev.noDecorations) return false;
+            String senderId = cell.messageData.senderId;
+            return senderId != null && senderId.equals(prev.messageData.senderId);
+        }
+    }
+    
+    /** Builds cells for message and indexes its text */
+    private MessageData buildMessageData(Uri msgId, AtlasTextIndex index) {
+        Message msg = client.getMessage(msgId);
+        MessageData msgData = new MessageData(msg, client.getAuthenticatedUserId());
+        buildCellForMessage(msg, msgData.cells);
+        for (int i = 0; i < msgData.cells.size(); i++) {
+            Cell cell = msgData.cells.get(i);
+            cell.messageData = msgData;
+            cell.owner = this;
+            // cells sharing the same part are told apart by their order
+            Uri partId = cell.messagePart.getId();
+            int samePartBefore = 0;
+            for (int j = 0; j < i; j++) {
+                if (partId.equals(msgData.cells.get(j).messagePart.getId())) samePartBefore++;
+            }
+            cell.stableId = stableIdOf(partId) + samePartBefore;
+            cell.onPrepare();
+        }
+        index.addMessage(msg);
+        return msgData;
+    }
+    
+    /** 64-bit FNV-1a hash of part id. The same part gets the same id in every snapshot */
+    private static long stableIdOf(Uri partId) {
+        String uri = partId.toString();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < uri.length(); i++) {
+            hash ^= uri.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
-        if (debug) Log.d(TAG, "updateValues() parts finished in: " + (System.currentTimeMillis() - started) + " ms");
-        messagesAdapter.notifyDataSetChanged();
+    /**
+     * Rescans {@link #receipts} in current snapshot. Recipient statuses are taken from {@link MessageData}, 
+     * so message with changed status needs to be rebuilt first
+     * 
+     * @param rebindChanged - re-bind rows of messages that gain or lose receipt. 
+     *                        Pass false if the whole list is to be refreshed anyway  
+     * @return true if latest delivered or read message is changed
+     */
+    private boolean updateDeliveryStatus(boolean rebindChanged) {
+        Uri oldLatestDeliveredId = receipts.latestDeliveredId;
+        Uri oldLatestReadId = receipts.latestReadId;
+        int oldLatestReadCount = receipts.latestReadCount;
+        int scanned = receipts.scan(messagesOrder);
+        
+        boolean changed = !Receipts.equal(oldLatestDeliveredId, receipts.latestDeliveredId)
+                || !Receipts.equal(oldLatestReadId, receipts.latestReadId)
+                || oldLatestReadCount != receipts.latestReadCount;
         
-        if (jumpToTheEnd) jumpToLastMessage();
+        if (changed && rebindChanged) {
+            rebindMessage(oldLatestDeliveredId);
+            rebindMessage(oldLatestReadId);
+            rebindMessage(receipts.latestDeliveredId);
+            rebindMessage(receipts.latestReadId);
+        }
+        
+        if (debug) Log.w(TAG, "updateDeliveryStatus() read status changed: " + (changed ? "yes" : "no") + ", scanned: " + scanned + " of " + messagesOrder.size());
+        if (debug) Log.w(TAG, "updateDeliveryStatus() latestRead:          " + receipts.latestReadId + ", by: " + receipts.latestReadCount);
+        if (debug) Log.w(TAG, "updateDeliveryStatus() latestDelivered:     " + receipts.latestDeliveredId);
+        return changed;
     }
-
-    private boolean updateDeliveryStatus(List<MessageData> messagesData) {
-        if (debug) Log.w(TAG, "updateDeliveryStatus() checking messages:   " + messagesData.size());
-        Message oldLatestDeliveredMessage = latestDeliveredMessage;
-        Message oldLatestReadMessage = latestReadMessage;
-        // reset before scan
-        latestDeliveredMessage = null;
-        latestReadMessage = null;
-        
-        for (MessageData msgData : messagesData) {
-            // only our messages
-            Message message = msgData.msg;
-            if (client.getAuthenticatedUserId().equals(message.getSender().getUserId())){
-                if (!message.isSent()) continue;
-                Map<String, RecipientStatus> statuses = message.getRecipientStatus();
-                if (statuses == null || statuses.size() == 0) continue;
-                for (Map.Entry<String, RecipientStatus> entry : statuses.entrySet()) {
-                    // our read-status doesn't matter 
-                    if (entry.getKey().equals(client.getAuthenticatedUserId())) continue;
-                    
-                    if (entry.getValue() == RecipientStatus.READ) {
-                        latestDeliveredMessage = message;
-                        latestReadMessage = message;
-                        break;
-                    }
-                    if (entry.getValue() == RecipientStatus.DELIVERED) {
-                        latestDeliveredMessage = message;
-                    }
+    
+    /** Re-binds visible rows of message */
+    private void rebindMessage(Uri msgId) {
+        if (msgId == null) return;
+        MessageData msgData = messagesData.get(msgId);
+        if (msgData == null) return;
+        for (Cell cell : msgData.cells) {
+            int position = cells.lastIndexOf(cell);
+            if (position != -1) rebindRow(position);
+        }
+    }
+    
+    /** @return id of latest message sent by authenticated user and delivered to at least one recipient. <code>null</code> if none */
+    public Uri getLatestDeliveredMessageId() {
+        return receipts.latestDeliveredId;
+    }
+    
+    /** @return id of latest message sent by authenticated user and read by at least one recipient. <code>null</code> if none */
+    public Uri getLatestReadMessageId() {
+        return receipts.latestReadId;
+    }
+    
+    /** @return number of recipients who have read {@link #getLatestReadMessageId()} */
+    public int getLatestReadCount() {
+        return receipts.latestReadCount;
+    }
+    
+    /** 
+     * @return id of the latest loaded message sent by authenticated user and read by recipient. 
+     * <code>null</code> if recipient has read none of them
+     */
+    public Uri getLastReadMessageId(String recipientId) {
+        MessageData msgData = receipts.lastReadByRecipient.get(recipientId);
+        return msgData != null ? msgData.id : null;
+    }
+    
+    /**
+     * Collects messages displayed to authenticated user and marks them as read in one pass. Each message 
+     * is marked once, messages already read are skipped, so re-binds of the same rows cost nothing 
+     */
+    private static final class ReadTracker {
+        /** displayed messages to be marked as read, in order of appearance */
+        final LinkedHashMap<Uri, Message> pending = new LinkedHashMap<Uri, Message>();
+        /** messages read before or marked as read by this tracker */
+        final HashSet<Uri> marked = new HashSet<Uri>();
+        
+        /** @return true if message is not read yet and has been added to pending */
+        boolean onDisplayed(MessageData msgData) {
+            Uri id = msgData.id;
+            if (marked.contains(id) || pending.containsKey(id)) return false;
+            if (msgData.isRead) {
+                marked.add(id);
+                return false;
+            }
+            pending.put(id, msgData.msg);
+            return true;
+        }
+        
+        /** @return number of messages marked as read */
+        int flush() {
+            int flushed = pending.size();
+            for (Map.Entry<Uri, Message> entry : pending.entrySet()) {
+                entry.getValue().markAsRead();
+                marked.add(entry.getKey());
+            }
+            pending.clear();
+            return flushed;
+        }
+        
+        void reset() {
+            pending.clear();
+            marked.clear();
+        }
+    }
+    
+    /**
+     * Tracks latest delivered and read messages sent by authenticated user. Messages are scanned backward 
+     * from the tail and scan stops at the latest read one, so cost depends on its distance from the tail, 
+     * not on number of messages. Read message is delivered as well, so latest delivered is always found on the way.
+     * <p>
+     * Last read message of each recipient is updated from every rebuilt message instead, as recipients 
+     * could be far behind the latest read one. READ status is never taken back, so position only moves 
+     * forward unless the message is deleted  
+     */
+    private static final class Receipts {
+        Uri latestDeliveredId;
+        Uri latestReadId;
+        /** number of recipients who have read latestRead message */
+        int latestReadCount;
+        /** recipientId -> latest message read by recipient */
+        final HashMap<String, MessageData> lastReadByRecipient = new HashMap<String, MessageData>();
+        /** false until every message of current snapshot is tracked */
+        boolean tracked = false;
+        
+        /** Moves last read positions of recipients who have read rebuilt message */
+        void track(MessageData msgData) {
+            if (!msgData.isMine || !msgData.isSent) return;
+            for (Map.Entry<String, RecipientStatus> entry : msgData.receipts.entrySet()) {
+                if (entry.getValue() != RecipientStatus.READ) continue;
+                MessageData lastRead = lastReadByRecipient.get(entry.getKey());
+                if (lastRead == null || lastRead.sentAt < msgData.sentAt || lastRead.id.equals(msgData.id)) {
+                    lastReadByRecipient.put(entry.getKey(), msgData);
                 }
             }
         }
-        boolean changed = false;
-        if      (oldLatestDeliveredMessage == null && latestDeliveredMessage != null) changed = true;
-        else if (oldLatestDeliveredMessage != null && latestDeliveredMessage == null) changed = true;
-        else if (oldLatestDeliveredMessage != null && latestDeliveredMessage != null 
-                && !oldLatestDeliveredMessage.getId().equals(latestDeliveredMessage.getId())) changed = true;
         
-        if      (oldLatestReadMessage == null && latestReadMessage != null) changed = true;
-        else if (oldLatestReadMessage != null && latestReadMessage == null) changed = true;
-        else if (oldLatestReadMessage != null && latestReadMessage != null 
-                && !oldLatestReadMessage.getId().equals(latestReadMessage.getId())) changed = true;
+        /** Recipients whose last read message is deleted are looked up again, scanning backward from the tail */
+        void forget(Uri msgId, List<MessageData> order) {
+            HashSet<String> lost = new HashSet<String>();
+            for (Iterator<Map.Entry<String, MessageData>> it = lastReadByRecipient.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, MessageData> entry = it.next();
+                if (!entry.getValue().id.equals(msgId)) continue;
+                lost.add(entry.getKey());
+                it.remove();
+            }
+            for (int i = order.size() - 1; i >= 0 && !lost.isEmpty(); i--) {
+                MessageData msgData = order.get(i);
+                if (!msgData.isMine || !msgData.isSent) continue;
+                for (Iterator<String> it = lost.iterator(); it.hasNext();) {
+                    String recipientId = it.next();
+                    if (msgData.receipts.get(recipientId) != RecipientStatus.READ) continue;
+                    lastReadByRecipient.put(recipientId, msgData);
+                    it.remove();
+                }
+            }
+        }
         
-        if (debug) Log.w(TAG, "updateDeliveryStatus() read status changed: " + (changed ? "yes" : "no"));
-        if (debug) Log.w(TAG, "updateDeliveryStatus() latestRead:          " + (latestReadMessage != null ? latestReadMessage.getSentAt() + ", id: " + latestReadMessage.getId() : "null"));
-        if (debug) Log.w(TAG, "updateDeliveryStatus() latestDelivered:     " + (latestDeliveredMessage != null ? latestDeliveredMessage.getSentAt()+ ", id: " + latestDeliveredMessage.getId() : "null"));
+        /** Tracks every message from scratch, i.e. when snapshot is restored from cache */
+        void trackAll(List<MessageData> order) {
+            lastReadByRecipient.clear();
+            for (MessageData msgData : order) {
+                track(msgData);
+            }
+            tracked = true;
+        }
         
-        return changed;
+        void reset() {
+            latestDeliveredId = null;
+            latestReadId = null;
+            latestReadCount = 0;
+            lastReadByRecipient.clear();
+            tracked = false;
+        }
+        
+        /** @return number of scanned messages */
+        int scan(List<MessageData> order) {
+            latestDeliveredId = null;
+            latestReadId = null;
+            latestReadCount = 0;
+            
+            int scanned = 0;
+            for (int i = order.size() - 1; i >= 0 && latestReadId == null; i--, scanned++) {
+                MessageData msgData = order.get(i);
+                // only our messages
+                if (!msgData.isMine || !msgData.isSent) continue;
+                // our read-status is not there
+                for (Map.Entry<String, RecipientStatus> entry : msgData.receipts.entrySet()) {
+                    if (entry.getValue() == RecipientStatus.READ) {
+                        if (latestDeliveredId == null) latestDeliveredId = msgData.id;
+                        latestReadId = msgData.id;
+                        latestReadCount++;
+                    } else if (entry.getValue() == RecipientStatus.DELIVERED) {
+                        if (latestDeliveredId == null) latestDeliveredId = msgData.id;
+                    }
+                }
+            }
+            return scanned;
+        }
+        
+        static boolean equal(Uri left, Uri right) {
+            return left == null ? right == null : left.equals(right);
+        }
     }
     
     private long messageUpdateSentAt = 0;
     
-    private final Handler refreshHandler = new Handler() {
-        public void handleMessage(android.os.Message msg) {
+    private final Handler refreshHandler = new Handler();
+    
+    /** what is requested by {@link #requestRefreshValues(boolean, boolean)} since the last refresh */
+    private boolean refreshUpdateValues = false;
+    private boolean refreshJumpToBottom = false;
+    
+    /** Merges change events and refresh requests, so cells are rebuilt at most once per coalescing window */
+    private final Atlas.UpdateCoalescer refreshCoalescer = new Atlas.UpdateCoalescer(TAG, new Runnable() {
+        public void run() {
             long started = System.currentTimeMillis();
-            if (msg.what ==  MESSAGE_TYPE_UPDATE_VALUES) {
-                if (msg.arg1 == MESSAGE_REFRESH_UPDATE_ALL) {
-                    updateValues();
-                } else if (msg.arg1 == MESSAGE_REFRESH_UPDATE_DELIVERY) {
-                    boolean changed = updateDeliveryStatus(messagesOrder);
-                    if (changed) messagesAdapter.notifyDataSetInvalidated();
-                    if (debug) Log.w(TAG, "refreshHandler() delivery status changed: " + changed);
-                }
-                if (msg.arg2 > 0) {
-                    jumpToLastMessage();
-                }
+            boolean updateValues = refreshUpdateValues;
+            boolean jumpToBottom = refreshJumpToBottom;
+            refreshUpdateValues = false;
+            refreshJumpToBottom = false;
+            
+            if (updateValues) {
+                updateValues();
+            } else {
+                boolean changed = updateDeliveryStatus(true);
+                if (debug) Log.w(TAG, "refresh() delivery status changed: " + changed);
+            }
+            if (jumpToBottom) {
+                jumpToLastMessage();
             }
             final long currentTimeMillis = System.currentTimeMillis();
-            if (debug) Log.w(TAG, "refreshHandler() delay: " + (currentTimeMillis - messageUpdateSentAt) + " ms, handled in: " + (currentTimeMillis - started) + "ms"); 
+            if (debug) Log.w(TAG, "refresh() delay: " + (currentTimeMillis - messageUpdateSentAt) + " ms, handled in: " + (currentTimeMillis - started) + "ms"); 
             messageUpdateSentAt = 0;
         }
-        
-    };
+    });
     
     @Override
     public void onEventMainThread(LayerChangeEvent event) {
         boolean updateValues = false;
         boolean jumpToBottom = false;
-        boolean updateDeliveryStatus = false;
         
         for (LayerChange change : event.getChanges()) {
             
+            if (change.getObjectType() == LayerObject.Type.CONVERSATION && change.getChangeType() == Type.DELETE) {
+                modelCache.invalidate(((Conversation) change.getObject()).getId());
+                continue;
+            }
+            
+            Message changedMsg = null;
             if (change.getObjectType() == LayerObject.Type.MESSAGE) {
-                Message msg = (Message) change.getObject();
-                messagesToUpdate.add(msg.getId());
+                changedMsg = (Message) change.getObject();
             } else if (change.getObjectType() == LayerObject.Type.MESSAGE_PART) {
                 MessagePart part = (MessagePart) change.getObject();
-                messagesToUpdate.add(part.getMessage().getId());
+                changedMsg = part.getMessage();
+                // text cells are built with placeholder until their part is downloaded
+                if (conv != null && change.getChangeType() == Type.UPDATE && part.isContentReady() 
+                        && Atlas.MIME_TYPE_TEXT.equals(part.getMimeType())) {
+                    updateValues = true;
+                }
             }
             
             if (query != null) {
+                if (changedMsg != null) messagesToUpdate.add(changedMsg.getId());
                 updateValues = true;
                 
             } else if (conv != null) {
+                if (changedMsg == null) continue;
+                if ( ! changedMsg.getConversation().getId().equals(conv.getId())) continue;
+                
+                if (change.getObjectType() == LayerObject.Type.MESSAGE && change.getChangeType() == Type.DELETE) {
+                    messagesToDelete.add(changedMsg.getId());
+                } else {
+                    messagesToUpdate.add(changedMsg.getId());
+                }
+                
                 if (change.getObjectType() == LayerObject.Type.MESSAGE) {
-                    Message msg = (Message) change.getObject();
-                    if ( ! msg.getConversation().getId().equals(conv.getId())) continue;
-                    
-                    if (change.getChangeType() == Type.UPDATE && "recipientStatus".equals(change.getAttributeName())) {
-                        updateDeliveryStatus = true;
+                    // receipts are taken from rebuilt MessageData. Only ours are shown, others wait for the next build 
+                    if (change.getChangeType() == Type.UPDATE && "recipientStatus".equals(change.getAttributeName())
+                            && client.getAuthenticatedUserId().equals(changedMsg.getSender().getUserId())) {
+                        updateValues = true;
                     }
                     
                     if (change.getChangeType() == Type.DELETE || change.getChangeType() == Type.INSERT) {
@@ -646,25 +1464,68 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
             }  
         }
         
-        if (updateValues || updateDeliveryStatus) {
+        if (updateValues) {
             requestRefreshValues(updateValues, jumpToBottom);
         }
     }
     
     public void requestRefreshValues(boolean updateValues, boolean jumpToBottom) {
         if (messageUpdateSentAt == 0) messageUpdateSentAt = System.currentTimeMillis();
-        refreshHandler.removeMessages(MESSAGE_TYPE_UPDATE_VALUES);
-        final android.os.Message message = refreshHandler.obtainMessage();
-        message.arg1 = updateValues ? MESSAGE_REFRESH_UPDATE_ALL : MESSAGE_REFRESH_UPDATE_DELIVERY;
-        message.arg2 = jumpToBottom ? 1 : 0; 
-        message.obj  = client;
-        refreshHandler.sendMessage(message);
+        refreshUpdateValues |= updateValues;
+        refreshJumpToBottom |= jumpToBottom;
+        refreshCoalescer.request();
     }
     
+    /** 
+     * Controls how change events are merged before cells are rebuilt. Use {@link Atlas.UpdateCoalescer#setWindowMs(long)} 
+     * to tune latency and its counters to see how many events were merged 
+     */
+    public Atlas.UpdateCoalescer getUpdateCoalescer() {
+        return refreshCoalescer;
+    }
+    
+    /** Re-binds all visible rows. Use {@link #requestRefresh(Cell)} if only one cell is changed */
     public void requestRefresh() {
         messagesList.post(INVALIDATE_VIEW);
     }
     
+    /** cells to be re-bound by {@link #REBIND_CELLS}. Guarded by itself */
+    private final HashSet<Cell> cellsToRebind = new HashSet<Cell>();
+    
+    /** 
+     * Re-binds the row of the cell if it is visible. Other rows are not touched. Could be called from any 
+     * thread, i.e. from download or image loader callbacks. Requests are merged until main thread picks them up 
+     */
+    public void requestRefresh(Cell cell) {
+        if (cell == null) throw new IllegalArgumentException("cell cannot be null");
+        synchronized (cellsToRebind) {
+            boolean scheduled = !cellsToRebind.isEmpty();
+            cellsToRebind.add(cell);
+            if (scheduled) return;
+        }
+        refreshHandler.post(REBIND_CELLS);
+    }
+    
+    private final Runnable REBIND_CELLS = new Runnable() {
+        public void run() {
+            HashSet<Cell> toRebind;
+            synchronized (cellsToRebind) {
+                toRebind = new HashSet<Cell>(cellsToRebind);
+                cellsToRebind.clear();
+            }
+            int firstVisible = messagesList.getFirstVisiblePosition();
+            int lastVisible = Math.min(messagesList.getLastVisiblePosition(), cells.size() - 1);
+            int rebound = 0;
+            for (int position = firstVisible; position <= lastVisible; position++) {
+                if (toRebind.contains(cells.get(position))) {
+                    rebindRow(position);
+                    rebound++;
+                }
+            }
+            if (debug) Log.w(TAG, "REBIND_CELLS requested: " + toRebind.size() + ", rebound: " + rebound);
+        }
+    };
+    
     private final Runnable INVALIDATE_VIEW = new Runnable() {
         public void run() {
             messagesList.invalidateViews();
@@ -676,12 +1537,36 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         super.onDetachedFromWindow();
         
         if (debug) Log.d(TAG, "onDetachedFromWindow() clean cells and views... ");
-        cells.clear();
+        // rows are removed without going to scrap heap
+        for (int i = 0; i < messagesList.getChildCount(); i++) {
+            Object tag = messagesList.getChildAt(i).getTag();
+            if (!(tag instanceof RowHolder) || ((RowHolder) tag).cell == null) continue;
+            ((RowHolder) tag).cell.onUnbind();
+            ((RowHolder) tag).cell = null;
+        }
+        resetOrder();
         messagesAdapter.notifyDataSetChanged();
         messagesList.removeAllViewsInLayout();
     }
     
     public void jumpToLastMessage() {
+        if (hasNewerMessages || windowLastId != null) {
+            // window is somewhere in history. Start from the latest page again
+            cancelBuild();
+            windowFirstId = null;
+            windowFrom = -1;
+            windowShift = 0;
+            windowLastId = null;
+            windowTailShift = 0;
+            hasNewerMessages = false;
+            jumpAfterBuild = true;
+            updateValues();
+            return;
+        }
+        if (buildInProgress != null) {
+            jumpAfterBuild = true;
+            return;
+        }
         messagesList.smoothScrollToPosition(cells.size() - 1);
     }
 
@@ -689,9 +1574,123 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         return conv;
     }
 
+    /** Called on main thread with results of {@link AtlasMessagesList#search(String, SearchListener)} */
+    public interface SearchListener {
+        /** @param partIds - text parts matching query, oldest first */
+        void onSearchResults(String query, List<Uri> partIds);
+    }
+    
+    /** 
+     * Looks query up among messages indexed so far: every built message and, after the first 
+     * {@link #search(String, SearchListener)}, the whole conversation. See {@link AtlasTextIndex#find(String)}
+     * 
+     * @return text parts matching query, oldest first
+     */
+    public List<Uri> findParts(String query) {
+        return textIndex.find(query);
+    }
+    
+    /**
+     * Indexes messages of conversation or query which are not indexed yet and looks query up. Messages are 
+     * read on worker thread and indexed once, cells are not built for them. Results are dropped if another 
+     * conversation is shown meanwhile 
+     */
+    public void search(final String query, final SearchListener listener) {
+        if (listener == null) throw new IllegalArgumentException("SearchListener cannot be null");
+        final AtlasTextIndex index = textIndex;
+        final Conversation searchConv = conv;
+        final Query<Message> searchQuery = this.query;
+        getBuildHandler().post(new Runnable() {
+            public void run() {
+                long started = System.currentTimeMillis();
+                List<Uri> msgIds = null;
+                if (searchConv != null) {
+                    msgIds = client.getMessageIds(searchConv);
+                } else if (searchQuery != null) {
+                    msgIds = client.executeQueryForIds(searchQuery);
+                }
+                int indexed = 0;
+                if (msgIds != null) {
+                    for (Uri msgId : msgIds) {
+                        if (index.containsMessage(msgId)) continue;
+                        Message msg = client.getMessage(msgId);
+                        if (msg == null) continue;
+                        index.addMessage(msg);
+                        indexed++;
+                    }
+                }
+                final List<Uri> found = index.find(query);
+                if (debug) Log.w(TAG, "search() indexed: " + indexed + ", found: " + found.size() + " in " + (System.currentTimeMillis() - started) + " ms");
+                refreshHandler.post(new Runnable() {
+                    public void run() {
+                        if (index != textIndex) return;
+                        listener.onSearchResults(query, found);
+                    }
+                });
+            }
+        });
+    }
+    
+    /** Highlights words matching query in text cells, the same way {@link #findParts(String)} matches them. <code>null</code> to clear */
+    public void setHighlight(String query) {
+        this.highlightQuery = query == null || query.trim().length() == 0 ? null : query;
+        requestRefresh();
+    }
+    
+    public String getHighlight() {
+        return highlightQuery;
+    }
+    
+    /**
+     * Scrolls to the cell of text part. If part is not loaded, window of one page around its message 
+     * is loaded instead, so history is not built from that message to the latest one. Newer pages are 
+     * loaded while scrolling down, {@link #jumpToLastMessage()} returns to the latest page 
+     * 
+     * @return false if part is neither loaded nor indexed
+     */
+    public boolean jumpToPart(Uri partId) {
+        if (partId == null) throw new IllegalArgumentException("partId cannot be null");
+        int position = positionOfPart(partId);
+        if (position != -1) {
+            messagesList.setSelection(position);
+            return true;
+        }
+        Uri msgId = textIndex.getMessageId(partId);
+        if (msgId == null) return false;
+        
+        cancelBuild();
+        windowFirstId = msgId;
+        windowFrom = -1;
+        windowShift = pageSize > 0 ? -pageSize / 2 : 0;
+        windowLastId = msgId;
+        windowTailShift = pageSize > 0 ? pageSize / 2 : 0;
+        olderPageRequested = false;
+        newerPageRequested = false;
+        jumpToPartAfterBuild = partId;
+        jumpAfterBuild = false;
+        updateValues();
+        return true;
+    }
+    
+    /** @return position of the first cell of part. Searched from the tail. -1 if part is not loaded */
+    private int positionOfPart(Uri partId) {
+        int position = -1;
+        for (int i = cells.size() - 1; i >= 0; i--) {
+            if (partId.equals(cells.get(i).messagePart.getId())) {
+                position = i;
+            } else if (position != -1) {
+                break;
+            }
+        }
+        return position;
+    }
+    
+    /** Conversation shown recently is rendered from {@link #modelCache} at once and then updated in background */
     public void setConversation(Conversation conv) {
+        resetOrder();
         this.conv = conv;
         this.query = null;
+        restoreModel();
         updateValues();
         jumpToLastMessage();
     }
@@ -702,12 +1701,93 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
             throw new IllegalArgumentException("Query must return Message object. Actual class: " + query.getQueryClass());
         }
         // 
+        resetOrder();
         this.query = query;
         this.conv = null;
         updateValues();
         jumpToLastMessage();
     }
     
+    /** order of previous conversation or query cannot be patched, so cached MessageData would be reordered from scratch */
+    private void resetOrder() {
+        cancelBuild();
+        saveModel();
+        reconcilePending = false;
+        textIndex = new AtlasTextIndex();
+        highlightQuery = null;
+        jumpToPartAfterBuild = null;
+        refreshCoalescer.cancel();
+        refreshUpdateValues = false;
+        refreshJumpToBottom = false;
+        refreshHandler.removeCallbacks(RETRY_BUILD);
+        buildRetryDelayMs = 0;
+        // messages already displayed are read regardless of what is shown next
+        refreshHandler.removeCallbacks(FLUSH_READS);
+        reads.flush();
+        reads.reset();
+        receipts.reset();
+        windowFirstId = null;
+        windowFrom = -1;
+        windowShift = 0;
+        hasOlderMessages = false;
+        olderPageRequested = false;
+        windowLastId = null;
+        windowTailShift = 0;
+        hasNewerMessages = false;
+        newerPageRequested = false;
+        cells = new ArrayList<Cell>();
+        messagesOrder = new ArrayList<MessageData>();
+        messagesToDelete.clear();
+    }
+    
+    /** 
+     * Puts current conversation into {@link #modelCache}. Cells are released until model is restored by any list.
+     * Model is owned by cache from now on, so its MessageData are not reused by the next build of this list, 
+     * even if cache drops the model at once 
+     */
+    private void saveModel() {
+        if (conv == null || cellFactory == null || cells.isEmpty()) return;
+        for (Cell cell : cells) {
+            cell.owner = null;
+        }
+        modelCache.put(new Model(ModelCache.keyOf(conv.getId(), cellFactory), messagesData, messagesOrder, cells, participants, 
+                windowFirstId, windowFrom, hasOlderMessages, windowLastId, hasNewerMessages, textIndex));
+        messagesData = new HashMap<Uri, MessageData>();
+        if (debug) Log.w(TAG, "saveModel() conversation: " + conv.getId() + ", cells: " + cells.size() + ", cached: " + modelCache.getSizeBytes() + " bytes");
+    }
+    
+    /** 
+     * Swaps model of current conversation from {@link #modelCache} into adapter, if any. 
+     * Next build reconciles it with LayerClient 
+     */
+    private boolean restoreModel() {
+        if (conv == null || cellFactory == null) return false;
+        Model model = modelCache.take(ModelCache.keyOf(conv.getId(), cellFactory));
+        if (model == null) return false;
+        
+        messagesData = model.data;
+        messagesOrder = model.order;
+        cells = model.cells;
+        participants = model.participants;
+        windowFirstId = model.windowFirstId;
+        windowFrom = model.windowFrom;
+        hasOlderMessages = model.hasOlderMessages;
+        windowLastId = model.windowLastId;
+        hasNewerMessages = model.hasNewerMessages;
+        textIndex = model.index;
+        for (Cell cell : cells) {
+            cell.owner = this;
+        }
+        receipts.trackAll(messagesOrder);
+        reconcilePending = true;
+        
+        updateDeliveryStatus(false);
+        messagesAdapter.notifyDataSetChanged();
+        messagesList.setSelection(cells.size() - 1);
+        if (debug) Log.w(TAG, "restoreModel() conversation: " + conv.getId() + ", cells: " + cells.size());
+        return true;
+    }
+    
     public LayerClient getLayerClient() {
         if (client == null) throw new IllegalStateException("AtlasMessagesList has not been initialized yet. Please call .init() first");
         return client;
@@ -717,31 +1797,287 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         this.clickListener = clickListener;
     }
     
-    /** Cells per message container */
+    /** Views of atlas_view_messages_convert row. Looked up once when row is inflated */
+    private final class RowHolder {
+        final View spacerTop;
+        final View spacerBottom;
+        final View timeBar;
+        final TextView timeBarDay;
+        final TextView timeBarTime;
+        final View avatarContainer;
+        final TextView textAvatar;
+        final ImageView avatarImgView;
+        final View spacerRight;
+        final TextView userNameHeader;
+        final ViewGroup cellContainer;
+        final TextView receiptView;
+        /** view returned by the latest Cell.onBind() */
+        View cellRootView;
+        /** cell bound to the row. null when row is recycled */
+        Cell cell;
+        
+        RowHolder(View convertView) {
+            spacerTop       = convertView.findViewById(R.id.atlas_view_messages_convert_spacer_top);
+            spacerBottom    = convertView.findViewById(R.id.atlas_view_messages_convert_spacer_bottom);
+            timeBar         = convertView.findViewById(R.id.atlas_view_messages_convert_timebar);
+            timeBarDay      = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_timebar_day);
+            timeBarTime     = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_timebar_time);
+            avatarContainer = convertView.findViewById(R.id.atlas_view_messages_convert_avatar_container);
+            textAvatar      = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_initials);
+            avatarImgView   = (ImageView) convertView.findViewById(R.id.atlas_view_messages_convert_avatar_img);
+            spacerRight     = convertView.findViewById(R.id.atlas_view_messages_convert_spacer_right);
+            userNameHeader  = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_user_name);
+            cellContainer   = (ViewGroup) convertView.findViewById(R.id.atlas_view_messages_cell_container);
+            receiptView     = (TextView) convertView.findViewById(R.id.atlas_view_messages_convert_delivery_receipt);
+            
+            timeBarDay.setTextColor(dateTextColor);
+            timeBarTime.setTextColor(dateTextColor);
+            textAvatar.setTextColor(avatarTextColor);
+        }
+    }
+    
+    /** What is needed to show conversation again. Cells keep clusters applied to them */
+    private static final class Model {
+        final String key;
+        final HashMap<Uri, MessageData> data;
+        final ArrayList<MessageData> order;
+        final ArrayList<Cell> cells;
+        final Set<String> participants;
+        final Uri windowFirstId;
+        final int windowFrom;
+        final boolean hasOlderMessages;
+        final Uri windowLastId;
+        final boolean hasNewerMessages;
+        /** text of messages indexed so far, including ones without cells */
+        final AtlasTextIndex index;
+        /** estimated heap retained by the model, see {@link ModelCache} */
+        final long sizeBytes;
+        
+        Model(String key, HashMap<Uri, MessageData> data, ArrayList<MessageData> order, ArrayList<Cell> cells, Set<String> participants, 
+                Uri windowFirstId, int windowFrom, boolean hasOlderMessages, Uri windowLastId, boolean hasNewerMessages, AtlasTextIndex index) {
+            this.key = key;
+            this.data = data;
+            this.order = order;
+            this.cells = cells;
+            this.participants = participants;
+            this.windowFirstId = windowFirstId;
+            this.windowFrom = windowFrom;
+            this.hasOlderMessages = hasOlderMessages;
+            this.windowLastId = windowLastId;
+            this.hasNewerMessages = hasNewerMessages;
+            this.index = index;
+            long bytes = 0;
+            for (Cell cell : cells) {
+                bytes += cell.estimateRetainedBytes();
+            }
+            this.sizeBytes = bytes + data.size() * ModelCache.MESSAGE_BYTES + index.estimateRetainedBytes();
+        }
+    }
+    
+    /**
+     * LRU of conversation models (snapshot, window and clusters) left by AtlasMessagesLists. Model is taken 
+     * back when conversation is shown again, so it is rendered at once instead of waiting for a build. 
+     * Bounded by heap the models retain, estimated from their messages, cells and text index, see 
+     * {@link Cell#estimateRetainedBytes()}. Bitmaps shown by cells are not counted, as they are kept by 
+     * {@link Atlas#imageLoader} on its own budget. Models are keyed by conversation and CellFactory class, 
+     * as cells of one factory cannot be shown by another. Thread-safe
+     */
+    public static final class ModelCache {
+        public static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+        /** MessageData with its receipts, per message */
+        static final int MESSAGE_BYTES = 256;
+        
+        private long maxBytes = DEFAULT_MAX_BYTES;
+        private long sizeBytes = 0;
+        private final LinkedHashMap<String, Model> models = new LinkedHashMap<String, Model>(16, 1f, true);
+        
+        // counters
+        private int hits = 0;
+        private int misses = 0;
+        
+        static String keyOf(Uri conversationId, CellFactory cellFactory) {
+            return conversationId + "#" + cellFactory.getClass().getName();
+        }
+        
+        private synchronized void put(Model model) {
+            Model old = models.put(model.key, model);
+            if (old != null) sizeBytes -= old.sizeBytes;
+            sizeBytes += model.sizeBytes;
+            trim();
+        }
+        
+        /** @return model removed from cache, so it is never shown by two lists. <code>null</code> if not found */
+        private synchronized Model take(String key) {
+            Model model = models.remove(key);
+            if (model == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            sizeBytes -= model.sizeBytes;
+            return model;
+        }
+        
+        private void trim() {
+            Iterator<Model> eldest = models.values().iterator();
+            while (sizeBytes > maxBytes && eldest.hasNext()) {
+                sizeBytes -= eldest.next().sizeBytes;
+                eldest.remove();
+            }
+        }
+        
+        /** Drops models of conversation, i.e. when it is deleted */
+        public synchronized void invalidate(Uri conversationId) {
+            String prefix = conversationId + "#";
+            for (Iterator<String> keys = models.keySet().iterator(); keys.hasNext();) {
+                String key = keys.next();
+                if (!key.startsWith(prefix)) continue;
+                sizeBytes -= models.get(key).sizeBytes;
+                keys.remove();
+            }
+        }
+        
+        /** Drops everything, i.e. when user is logged out */
+        public synchronized void clear() {
+            models.clear();
+            sizeBytes = 0;
+        }
+        
+        /** @param maxBytes - estimated heap models could retain. 0 disables cache */
+        public synchronized void setMaxBytes(long maxBytes) {
+            if (maxBytes < 0) throw new IllegalArgumentException("maxBytes cannot be negative: " + maxBytes);
+            this.maxBytes = maxBytes;
+            trim();
+        }
+        
+        public synchronized long getMaxBytes() {
+            return maxBytes;
+        }
+        
+        /** @return estimated heap retained by cached models */
+        public synchronized long getSizeBytes() {
+            return sizeBytes;
+        }
+        
+        /** @return number of conversations rendered from cache */
+        public synchronized int getHitCount() {
+            return hits;
+        }
+        
+        /** @return number of conversations built from scratch */
+        public synchronized int getMissCount() {
+            return misses;
+        }
+    }
+    
+    /** 
+     * Render snapshot of a message. Built on worker thread each time message is changed and never 
+     * modified after, so binding, clustering and receipts read plain fields instead of going through LayerClient 
+     */
     private static class MessageData {
         final Message msg;
+        final Uri id;
+        /** filled once by CellFactory when MessageData is built */
         final List<Cell> cells;
-        public MessageData(Message msg) {
+        /** clustering keys. Calculated once when message is built */
+        final String senderId;
+        final long sentAt;
+        /** year * 1000 + day of year */
+        final int sentDay;
+        /** name provided by Layer, used if participant is unknown. Could be null */
+        final String senderName;
+        /** sent by authenticated user */
+        final boolean isMine;
+        final boolean isSent;
+        /** read by authenticated user */
+        final boolean isRead;
+        /** recipientId -> status. Only for messages sent by authenticated user, who is not included */
+        final Map<String, RecipientStatus> receipts;
+        
+        public MessageData(Message msg, String userId) {
             if (msg == null) throw new IllegalArgumentException("Message cannot be null");
             this.msg = msg;
+            this.id = msg.getId();
             this.cells = new ArrayList<Cell>();
+            this.senderId = msg.getSender().getUserId();
+            this.senderName = msg.getSender().getName();
+            Date sentAtDate = msg.getSentAt();
+            this.sentAt = sentAtDate != null ? sentAtDate.getTime() : System.currentTimeMillis();
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(sentAt);
+            this.sentDay = cal.get(Calendar.YEAR) * 1000 + cal.get(Calendar.DAY_OF_YEAR);
+            this.isMine = userId != null && userId.equals(senderId);
+            this.isSent = msg.isSent();
+            
+            Map<String, RecipientStatus> statuses = msg.getRecipientStatus();
+            this.isRead = statuses != null && statuses.get(userId) == RecipientStatus.READ;
+            if (isMine && isSent && statuses != null && !statuses.isEmpty()) {
+                // sender is not always included, so recipients are copied one by one
+                HashMap<String, RecipientStatus> receipts = new HashMap<String, RecipientStatus>();
+                for (Map.Entry<String, RecipientStatus> entry : statuses.entrySet()) {
+                    if (!entry.getKey().equals(userId)) receipts.put(entry.getKey(), entry.getValue());
+                }
+                this.receipts = receipts.isEmpty() ? Collections.<String, RecipientStatus>emptyMap() : Collections.unmodifiableMap(receipts);
+            } else {
+                this.receipts = Collections.<String, RecipientStatus>emptyMap();
+            }
+        }
+        
+        /** @return true if other snapshot of the same message would be rendered the same way */
+        boolean sameState(MessageData other) {
+            return isSent == other.isSent 
+                    && isRead == other.isRead 
+                    && sentAt == other.sentAt 
+                    && receipts.equals(other.receipts);
         }
     }
     
     public static class TextCell extends Cell {
+        /** shown until text part is downloaded */
+        private static final String TEXT_PENDING = "...";
 
+        /** null until part's content is decoded */
         protected String text;
-        AtlasMessagesList messagesList;
         
+        /** @param messagesList - not used, cell is shown by {@link #getMessagesList()} */
         public TextCell(MessagePart messagePart, AtlasMessagesList messagesList) {
             super(messagePart);
-            this.messagesList = messagesList;
         }
         
+        /** @param messagesList - not used, cell is shown by {@link #getMessagesList()} */
         public TextCell(MessagePart messagePart, String text, AtlasMessagesList messagesList) {
             super(messagePart);
             this.text = text;
         }
+        
+        @Override
+        protected int estimateRetainedBytes() {
+            return super.estimateRetainedBytes() + (text != null ? text.length() * 2 : 0);
+        }
+        
+        /** Decodes text and lays it out for bubble, so neither is done on the main thread */
+        @Override
+        protected void onPrepare() {
+            if (text == null) text = decodeText(messagePart);
+            if (text == null) return;       // content-ready change of the part brings the next build
+            AtlasTextLayoutView.layoutCache.prepare(messagePart.getId(), text, textStyle());
+        }
+        
+        /** @return null if text part is not downloaded yet */
+        private static String decodeText(MessagePart part) {
+            if (Atlas.MIME_TYPE_TEXT.equals(part.getMimeType())) {
+                byte[] data = part.isContentReady() ? part.getData() : null;
+                return data != null ? new String(data) : null;
+            } else {
+                return "attach, type: " + part.getMimeType() + ", size: " + part.getSize();
+            }
+        }
+        
+        
+        private AtlasTextLayoutView.TextStyle textStyle() {
+            AtlasMessagesList messagesList = getMessagesList();
+            return isMyMessage() ? messagesList.myTextLayoutStyle : messagesList.otherTextLayoutStyle;
+        }
 
         public View onBind(ViewGroup cellContainer) {
             MessagePart part = messagePart;
@@ -752,20 +2088,30 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                 cellText = LayoutInflater.from(cellContainer.getContext()).inflate(R.layout.atlas_view_messages_cell_text, cellContainer, false);
             }
             
+            if (text == null) text = decodeText(part);    // cell is built without prepare
+            AtlasMessagesList messagesList = getMessagesList();
+            
+            // highlighted text gets its own layout, plain one stays cached
+            CharSequence shownText = text;
+            Object layoutId = part.getId();
             if (text == null) {
-                if (Atlas.MIME_TYPE_TEXT.equals(part.getMimeType())) {
-                    text = new String(part.getData());
-                } else {
-                    text = "attach, type: " + part.getMimeType() + ", size: " + part.getSize();
+                // placeholder must not take layout id of the text
+                shownText = TEXT_PENDING;
+                layoutId = part.getId() + "#pending";
+            } else if (messagesList.highlightQuery != null) {
+                CharSequence highlighted = AtlasTextIndex.highlight(text, messagesList.highlightQuery, HIGHLIGHT_COLOR);
+                if (highlighted != null) {
+                    shownText = highlighted;
+                    layoutId = part.getId() + "#" + messagesList.highlightQuery;
                 }
             }
             
-            boolean myMessage = messagesList.client.getAuthenticatedUserId().equals(cell.messagePart.getMessage().getSender().getUserId());
-            TextView textMy = (TextView) cellText.findViewById(R.id.atlas_view_messages_convert_text);
-            TextView textOther = (TextView) cellText.findViewById(R.id.atlas_view_messages_convert_text_counterparty);
+            boolean myMessage = isMyMessage();
+            AtlasTextLayoutView textMy = (AtlasTextLayoutView) cellText.findViewById(R.id.atlas_view_messages_convert_text);
+            AtlasTextLayoutView textOther = (AtlasTextLayoutView) cellText.findViewById(R.id.atlas_view_messages_convert_text_counterparty);
             if (myMessage) {
                 textMy.setVisibility(View.VISIBLE);
-                textMy.setText(text);
+                textMy.setText(layoutId, shownText, messagesList.myTextLayoutStyle);
                 textOther.setVisibility(View.GONE);
                 
                 textMy.setBackgroundResource(R.drawable.atlas_shape_rounded16_blue);
@@ -780,12 +2126,9 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                     }
                 }
                 ((GradientDrawable)textMy.getBackground()).setColor(messagesList.myBubbleColor);
-                textMy.setTextColor(messagesList.myTextColor);
-                //textMy.setTextSize(TypedValue.COMPLEX_UNIT_DIP, myTextSize);
-                textMy.setTypeface(messagesList.myTextTypeface, messagesList.myTextStyle);
             } else {
                 textOther.setVisibility(View.VISIBLE);
-                textOther.setText(text);
+                textOther.setText(layoutId, shownText, messagesList.otherTextLayoutStyle);
                 textMy.setVisibility(View.GONE);
                 
                 textOther.setBackgroundResource(R.drawable.atlas_shape_rounded16_gray);
@@ -799,9 +2142,6 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                     }
                 }
                 ((GradientDrawable)textOther.getBackground()).setColor(messagesList.otherBubbleColor);
-                textOther.setTextColor(messagesList.otherTextColor);
-                //textOther.setTextSize(TypedValue.COMPLEX_UNIT_DIP, otherTextSize);
-                textOther.setTypeface(messagesList.otherTextTypeface, messagesList.otherTextStyle);
             }
             return cellText;
         }
@@ -822,6 +2162,16 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         /** don't move left and right */
         private boolean noDecorations;
         
+        /** message this cell is built for. Set when MessageData is built */
+        private MessageData messageData;
+        /** adapter item id. Derived from part id when MessageData is built */
+        private long stableId;
+        /** list showing the cell. Cells are moved between lists with cached models, see {@link ModelCache} */
+        private volatile AtlasMessagesList owner;
+        
+        /** cell object with its fields and cluster flags, see {@link #estimateRetainedBytes()} */
+        protected static final int CELL_BYTES = 128;
+        
         public Cell(MessagePart messagePart) {
             this.messagePart = messagePart;
         }
@@ -831,6 +2181,32 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
             this.noDecorations = noDecorations;
         }
 
+        /** 
+         * Applies flags calculated by {@link Clustering}. clusterItemId is position at the moment of 
+         * calculation, so <code>clusterHeadItemId == clusterItemId</code> is true only for cluster heads  
+         * 
+         * @return true if anything is changed and cell needs to be re-bound
+         */
+        private boolean applyCluster(int position, int head, int flags) {
+            boolean wasHead = clusterHeadItemId == clusterItemId;
+            boolean newClusterTail  = (flags & Clustering.FLAG_TAIL) != 0;
+            boolean newTimeHeader   = (flags & Clustering.FLAG_TIME_HEADER) != 0;
+            boolean newFirstUserMsg = (flags & Clustering.FLAG_FIRST_USER_MSG) != 0;
+            boolean newLastUserMsg  = (flags & Clustering.FLAG_LAST_USER_MSG) != 0;
+            boolean changed = wasHead != (head == position)
+                    || clusterTail  != newClusterTail
+                    || timeHeader   != newTimeHeader
+                    || firstUserMsg != newFirstUserMsg
+                    || lastUserMsg  != newLastUserMsg;
+            clusterHeadItemId = head;
+            clusterItemId     = position;
+            clusterTail       = newClusterTail;
+            timeHeader        = newTimeHeader;
+            firstUserMsg      = newFirstUserMsg;
+            lastUserMsg       = newLastUserMsg;
+            return changed;
+        }
+
         @Override
         public String toString() {
             StringBuilder builder = new StringBuilder();
@@ -844,15 +2220,52 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
             return builder.toString();
         }
         
-        private void reset() {
-            clusterHeadItemId = 0;
-            clusterItemId     = 0;
-            clusterTail       = false;
-            timeHeader        = false; 
-            firstUserMsg      = false;
-            lastUserMsg       = false; 
+        /** 
+         * @return true if message is sent by authenticated user. Taken from message snapshot, so could be 
+         * called from {@link #onPrepare()} and {@link #onBind(ViewGroup)} only  
+         */
+        protected boolean isMyMessage() {
+            if (messageData == null) throw new IllegalStateException("Cell is not built by AtlasMessagesList yet: " + this);
+            return messageData.isMine;
         }
-
+        
+        /** 
+         * @return list showing the cell. Set when MessageData is built and reassigned when cached model is 
+         * restored by another list, so don't keep it in fields. <code>null</code> while model is cached  
+         */
+        protected AtlasMessagesList getMessagesList() {
+            return owner;
+        }
+        
+        /** 
+         * @return estimated heap retained by the cell while its model is kept by {@link ModelCache}. 
+         * Override if cell holds more than a few fields, i.e. decoded text 
+         */
+        protected int estimateRetainedBytes() {
+            return CELL_BYTES;
+        }
+        
+        /** Re-binds the row of the cell if it is shown. Could be called from any thread, see {@link AtlasMessagesList#requestRefresh(Cell)} */
+        protected void requestRebind() {
+            AtlasMessagesList list = owner;
+            if (list != null) list.requestRefresh(this);
+        }
+        
+        /**
+         * Called on worker thread right after cell is built, before it is shown. Override to decode or 
+         * precalculate anything heavy. Must not touch views 
+         */
+        protected void onPrepare() {
+        }
+        
+        /** 
+         * Called on main thread when row of the cell goes off screen or list is detached. Override to deprioritize 
+         * work requested for the cell, i.e. with {@link Atlas.ImageLoader#setVisible(Object, boolean)}, or to 
+         * cancel it with {@link Atlas.ImageLoader#cancel(Object, Atlas.ImageLoader.ImageLoadListener)}  
+         */
+        protected void onUnbind() {
+        }
+        
         /** 
          * Start with inflating your own cell.xml
         <pre>
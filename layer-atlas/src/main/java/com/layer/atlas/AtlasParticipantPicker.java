@@ -25,17 +25,7 @@ import java.util.TreeSet;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -95,11 +85,8 @@ public class AtlasParticipantPicker extends FrameLayout {
     private Typeface chipTextTypeface;
     private int chipTextStyle;
     
-    private Bitmap maskSingleBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(32, getContext()), (int)Tools.getPxFromDp(32, getContext()), Config.ARGB_8888);
-    private Paint avatarPaint = new Paint();
-    private Paint maskPaint = new Paint();
+    private int avatarSizePx = (int)Tools.getPxFromDp(32, getContext());
     private int avatarBackgroundColor;
-    private Bitmap maskSmallBmp = Bitmap.createBitmap((int)Tools.getPxFromDp(24, getContext()), (int)Tools.getPxFromDp(24, getContext()), Config.ARGB_8888);
 
     public AtlasParticipantPicker(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
@@ -196,36 +183,22 @@ public class AtlasParticipantPicker extends FrameLayout {
                 TextView name = (TextView) convertView.findViewById(R.id.atlas_view_participants_picker_convert_name);
                 TextView avatarText = (TextView) convertView.findViewById(R.id.atlas_view_participants_picker_convert_ava);
                 ImageView avatarImgView = (ImageView) convertView.findViewById(R.id.atlas_view_participants_picker_convert_avatar_img);
-                Bitmap avatarBmp = null;
-                if (avatarImgView.getDrawable() instanceof BitmapDrawable){
-                    BitmapDrawable bitmapDrawable = (BitmapDrawable) avatarImgView.getDrawable();
-                    avatarBmp = bitmapDrawable.getBitmap();
-                } else {
-                    avatarBmp = Bitmap.createBitmap(maskSingleBmp.getWidth(), maskSingleBmp.getHeight(), Config.ARGB_8888);
-                }
-                Canvas avatarCanvas = new Canvas(avatarBmp);
-                avatarCanvas.drawColor(avatarBackgroundColor, Mode.CLEAR);
-                avatarCanvas.drawColor(avatarBackgroundColor);
-                
                 ParticipantEntry entry = participantsForAdapter.get(position);
 
                 if (entry != null) {
                     name.setText(Atlas.getFullName(entry.participant));
-                    Drawable avatarDrawable = entry.participant.getAvatarDrawable();
-                    if (entry.participant != null && avatarDrawable != null) {
-                        avatarDrawable.setBounds(0, 0, avatarBmp.getWidth(), avatarBmp.getHeight());
-                        avatarDrawable.draw(avatarCanvas);
+                    if (entry.participant != null && entry.participant.getAvatarDrawable() != null) {
                         avatarText.setVisibility(View.INVISIBLE);
                     } else {
                         avatarText.setVisibility(View.VISIBLE);
                         avatarText.setText(Atlas.getInitials(entry.participant));
                     }
+                    avatarImgView.setImageBitmap(Atlas.avatarCache.getAvatar(entry.id, entry.participant, avatarSizePx, avatarBackgroundColor));
                 } else {
                     name.setText("Unknown user");
                     avatarText.setText("?");
+                    avatarImgView.setImageBitmap(Atlas.avatarCache.getAvatar(null, null, avatarSizePx, avatarBackgroundColor));
                 }
-                avatarCanvas.drawBitmap(maskSingleBmp, 0, 0, maskPaint);
-                avatarImgView.setImageBitmap(avatarBmp);
                 
                 // apply styles
                 name.setTextColor(listTextColor);
@@ -368,21 +341,6 @@ public class AtlasParticipantPicker extends FrameLayout {
     }
 
     private void setupPaints() {
-        avatarPaint.setAntiAlias(true);
-        avatarPaint.setDither(true);
-        
-        maskPaint.setAntiAlias(true);
-        maskPaint.setDither(true);
-        maskPaint.setXfermode(new PorterDuffXfermode(Mode.DST_IN));
-        
-        Paint paintCircle = new Paint();
-        paintCircle.setStyle(Style.FILL_AND_STROKE);
-        paintCircle.setColor(Color.CYAN);
-        paintCircle.setAntiAlias(true);
-        
-        Canvas maskSingleCanvas = new Canvas(maskSingleBmp);
-        maskSingleCanvas.drawCircle(0.5f * maskSingleBmp.getWidth(), 0.5f * maskSingleBmp.getHeight(), 0.5f * maskSingleBmp.getWidth(), paintCircle);
-        
         avatarBackgroundColor = getResources().getColor(R.color.atlas_shape_avatar_gray);
     }
 
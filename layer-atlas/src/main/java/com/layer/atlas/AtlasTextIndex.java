@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.net.Uri;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+
+/**
+ * Inverted index over {@link Atlas#MIME_TYPE_TEXT} parts of messages. Terms are kept sorted, so both
+ * whole terms and prefixes are looked up without scanning texts. Messages are added one by one as they
+ * are built or changed, so index never needs to be rebuilt from scratch. Thread-safe
+ */
+public class AtlasTextIndex {
+
+    /** term -> text parts containing it */
+    private final TreeMap<String, HashSet<Uri>> terms = new TreeMap<String, HashSet<Uri>>();
+    /** partId -> what is indexed for part */
+    private final HashMap<Uri, PartEntry> parts = new HashMap<Uri, PartEntry>();
+    /** messageId -> its text parts. Messages without text are kept as well, so they are not indexed twice */
+    private final HashMap<Uri, List<Uri>> messages = new HashMap<Uri, List<Uri>>();
+
+    /** Indexes text parts of message. Message indexed before is re-indexed. Parts not downloaded yet are skipped */
+    public void addMessage(Message msg) {
+        if (msg == null) throw new IllegalArgumentException("Message cannot be null");
+        Date sentAtDate = msg.getSentAt();
+        long sentAt = sentAtDate != null ? sentAtDate.getTime() : System.currentTimeMillis();
+
+        // tokenize outside of lock
+        ArrayList<Uri> partIds = new ArrayList<Uri>();
+        ArrayList<Set<String>> partTerms = new ArrayList<Set<String>>();
+        for (MessagePart part : msg.getMessageParts()) {
+            if (!Atlas.MIME_TYPE_TEXT.equals(part.getMimeType())) continue;
+            // no data yet. Message is re-indexed when it is rebuilt with downloaded text
+            if (!part.isContentReady()) continue;
+            partIds.add(part.getId());
+            partTerms.add(tokenize(new String(part.getData())));
+        }
+
+        synchronized (this) {
+            removeMessage(msg.getId());
+            for (int i = 0; i < partIds.size(); i++) {
+                Uri partId = partIds.get(i);
+                Set<String> words = partTerms.get(i);
+                parts.put(partId, new PartEntry(msg.getId(), sentAt, words));
+                for (String word : words) {
+                    HashSet<Uri> posting = terms.get(word);
+                    if (posting == null) terms.put(word, posting = new HashSet<Uri>());
+                    posting.add(partId);
+                }
+            }
+            messages.put(msg.getId(), partIds);
+        }
+    }
+
+    public synchronized void removeMessage(Uri messageId) {
+        List<Uri> partIds = messages.remove(messageId);
+        if (partIds == null) return;
+        for (Uri partId : partIds) {
+            PartEntry entry = parts.remove(partId);
+            if (entry == null) continue;
+            for (String word : entry.terms) {
+                HashSet<Uri> posting = terms.get(word);
+                if (posting == null) continue;
+                posting.remove(partId);
+                if (posting.isEmpty()) terms.remove(word);
+            }
+        }
+    }
+
+    /** 
+     * @return rough estimate of heap taken by the index: term entries with their strings, posting 
+     * entries and per part and message records 
+     */
+    public synchronized long estimateRetainedBytes() {
+        long postings = 0;
+        for (PartEntry entry : parts.values()) {
+            postings += entry.terms.size();
+        }
+        return terms.size() * 160L + postings * 80L + parts.size() * 96L + messages.size() * 64L;
+    }
+
+    public synchronized boolean containsMessage(Uri messageId) {
+        return messages.containsKey(messageId);
+    }
+
+    /** @return message of indexed part. <code>null</code> if part is not indexed */
+    public synchronized Uri getMessageId(Uri partId) {
+        PartEntry entry = parts.get(partId);
+        return entry != null ? entry.messageId : null;
+    }
+
+    /**
+     * Each word of query is matched as a prefix, so "hel wor" finds "Hello, World!"
+     *
+     * @return ids of parts containing all words of query, oldest first. Empty if query has no words
+     */
+    public synchronized List<Uri> find(String query) {
+        Set<String> words = tokenize(query);
+        if (words.isEmpty()) return new ArrayList<Uri>();
+
+        HashSet<Uri> result = null;
+        for (String word : words) {
+            HashSet<Uri> matched = new HashSet<Uri>();
+            for (HashSet<Uri> posting : terms.subMap(word, word + Character.MAX_VALUE).values()) {
+                matched.addAll(posting);
+            }
+            if (result == null) {
+                result = matched;
+            } else {
+                result.retainAll(matched);
+            }
+            if (result.isEmpty()) break;
+        }
+
+        ArrayList<Uri> sorted = new ArrayList<Uri>(result);
+        Collections.sort(sorted, new Comparator<Uri>() {
+            public int compare(Uri lhs, Uri rhs) {
+                long left = parts.get(lhs).sentAt;
+                long right = parts.get(rhs).sentAt;
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    public synchronized void clear() {
+        terms.clear();
+        parts.clear();
+        messages.clear();
+    }
+
+    /** @return number of distinct terms */
+    public synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /** @return number of indexed messages */
+    public synchronized int getMessageCount() {
+        return messages.size();
+    }
+
+    /** @return lower-cased words of text. Words are sequences of letters and digits */
+    public static Set<String> tokenize(String text) {
+        HashSet<String> words = new HashSet<String>();
+        if (text == null) return words;
+        int wordStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && wordStart == -1) {
+                wordStart = i;
+            } else if (!wordChar && wordStart != -1) {
+                words.add(text.substring(wordStart, i).toLowerCase());
+                wordStart = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Marks beginnings of words matching query the same way {@link #find(String)} matches them
+     *
+     * @return text with {@link BackgroundColorSpan}s or <code>null</code> if nothing is matched
+     */
+    public static CharSequence highlight(String text, String query, int color) {
+        Set<String> queryWords = tokenize(query);
+        if (text == null || queryWords.isEmpty()) return null;
+
+        SpannableString result = null;
+        int wordStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && wordStart == -1) {
+                wordStart = i;
+            } else if (!wordChar && wordStart != -1) {
+                String word = text.substring(wordStart, i).toLowerCase();
+                int matchedLength = 0;
+                for (String queryWord : queryWords) {
+                    if (word.startsWith(queryWord)) matchedLength = Math.max(matchedLength, queryWord.length());
+                }
+                if (matchedLength > 0) {
+                    if (result == null) result = new SpannableString(text);
+                    // lower-cased word could be longer than original one
+                    int matchedEnd = Math.min(wordStart + matchedLength, i);
+                    result.setSpan(new BackgroundColorSpan(color), wordStart, matchedEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                wordStart = -1;
+            }
+        }
+        return result;
+    }
+
+    private static final class PartEntry {
+        final Uri messageId;
+        final long sentAt;
+        final Set<String> terms;
+        PartEntry(Uri messageId, long sentAt, Set<String> terms) {
+            this.messageId = messageId;
+            this.sentAt = sentAt;
+            this.terms = terms;
+        }
+    }
+}
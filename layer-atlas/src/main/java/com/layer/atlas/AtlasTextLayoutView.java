@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.Layout.Alignment;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Draws text with {@link Layout} taken from {@link #layoutCache}. Layouts are usually built on
+ * worker thread before view is bound (see {@link LayoutCache#prepare(Object, CharSequence, TextStyle)}),
+ * so neither binding nor measuring performs text measurement on the main thread.
+ * <p>
+ * Background, padding and minHeight are supported as for any other View. Text is exposed to
+ * accessibility services as content description.
+ */
+public class AtlasTextLayoutView extends View {
+    private static final String TAG = AtlasTextLayoutView.class.getSimpleName();
+    private static final boolean debug = false;
+
+    /** Shared by all views. Layouts are keyed by id, style and available width */
+    public static final LayoutCache layoutCache = new LayoutCache();
+
+    private Object layoutId;
+    private CharSequence text;
+    private TextStyle style;
+
+    /** layout for the text and available width it was built for */
+    private Layout layout;
+    private int layoutAvailWidth = -1;
+
+    public AtlasTextLayoutView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    public AtlasTextLayoutView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public AtlasTextLayoutView(Context context) {
+        super(context);
+    }
+
+    /**
+     * @param layoutId  - something unique for the text, i.e. MessagePart id. Used as a key in {@link #layoutCache}
+     * @param text      - text to draw
+     * @param style     - how to draw
+     */
+    public void setText(Object layoutId, CharSequence text, TextStyle style) {
+        if (layoutId == null) throw new IllegalArgumentException("layoutId cannot be null");
+        if (style == null) throw new IllegalArgumentException("style cannot be null");
+        if (layoutId.equals(this.layoutId) && style.equals(this.style) && TextUtils.equals(text, this.text)) return;
+
+        this.layoutId = layoutId;
+        this.text = text;
+        this.style = style;
+        setContentDescription(text);
+        this.layout = null;
+        this.layoutAvailWidth = -1;
+        requestLayout();
+        invalidate();
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+        int paddingHorizontal = getPaddingLeft() + getPaddingRight();
+        int paddingVertical = getPaddingTop() + getPaddingBottom();
+
+        if (text == null) {
+            setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                    resolveSize(Math.max(getSuggestedMinimumHeight(), paddingVertical), heightMeasureSpec));
+            return;
+        }
+
+        int availWidth = widthMode == MeasureSpec.UNSPECIFIED ? Integer.MAX_VALUE : Math.max(0, widthSize - paddingHorizontal);
+        if (layout == null || layoutAvailWidth != availWidth) {
+            layout = layoutCache.obtain(layoutId, text, style, availWidth);
+            layoutAvailWidth = availWidth;
+        }
+
+        int width = layout.getWidth() + paddingHorizontal;
+        if (widthMode == MeasureSpec.EXACTLY) width = widthSize;
+        int height = Math.max(layout.getHeight() + paddingVertical, getSuggestedMinimumHeight());
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (layout == null) return;
+        canvas.save();
+        // center vertically if minHeight is bigger than text
+        int contentHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+        int offsetTop = Math.max(0, (contentHeight - layout.getHeight()) / 2);
+        canvas.translate(getPaddingLeft(), getPaddingTop() + offsetTop);
+        layout.draw(canvas);
+        canvas.restore();
+    }
+
+    /** Everything that affects text layout and rendering. Immutable, so could be shared between threads */
+    public static final class TextStyle {
+        public final float textSizePx;
+        public final Typeface typeface;
+        public final int typefaceStyle;
+        public final int color;
+        public final Alignment alignment;
+
+        /**
+         * @param typeface      - null for default
+         * @param typefaceStyle - {@link Typeface#NORMAL}, {@link Typeface#BOLD}, etc. Missing in typeface styles are simulated
+         */
+        public TextStyle(float textSizePx, Typeface typeface, int typefaceStyle, int color, Alignment alignment) {
+            if (alignment == null) throw new IllegalArgumentException("alignment cannot be null");
+            this.textSizePx = textSizePx;
+            this.typeface = typeface;
+            this.typefaceStyle = typefaceStyle;
+            this.color = color;
+            this.alignment = alignment;
+        }
+
+        /** Paint is created for each layout, as layout keeps it to draw with */
+        TextPaint createPaint() {
+            TextPaint paint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+            paint.setTextSize(textSizePx);
+            paint.setColor(color);
+            // the same as TextView.setTypeface(Typeface, int) does
+            Typeface tf = typeface == null ? Typeface.defaultFromStyle(typefaceStyle) : Typeface.create(typeface, typefaceStyle);
+            paint.setTypeface(tf);
+            int need = typefaceStyle & ~(tf != null ? tf.getStyle() : 0);
+            paint.setFakeBoldText((need & Typeface.BOLD) != 0);
+            paint.setTextSkewX((need & Typeface.ITALIC) != 0 ? -0.25f : 0);
+            return paint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TextStyle)) return false;
+            TextStyle other = (TextStyle) o;
+            return textSizePx == other.textSizePx
+                    && (typeface == null ? other.typeface == null : typeface.equals(other.typeface))
+                    && typefaceStyle == other.typefaceStyle
+                    && color == other.color
+                    && alignment == other.alignment;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Float.floatToIntBits(textSizePx);
+            result = 31 * result + (typeface != null ? typeface.hashCode() : 0);
+            result = 31 * result + typefaceStyle;
+            result = 31 * result + color;
+            result = 31 * result + alignment.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * LRU of text layouts keyed by (id, style, available width). Remembers the latest available width
+     * seen for each style, so layouts for new texts could be built ahead on worker thread. Thread-safe
+     */
+    public static final class LayoutCache {
+        public static final int DEFAULT_MAX_ENTRIES = 500;
+
+        private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+        private final LinkedHashMap<Key, Layout> cache = new LinkedHashMap<Key, Layout>(64, 1f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<Key, Layout> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        /** style -> the latest available width views measured it with */
+        private final HashMap<TextStyle, Integer> availWidths = new HashMap<TextStyle, Integer>();
+
+        // counters
+        private int hits = 0;
+        private int misses = 0;
+        private int prepared = 0;
+
+        /**
+         * Builds layout ahead with the latest available width seen for style. Nothing happens if width is
+         * unknown yet (no view has been measured with the style) or layout is already cached
+         *
+         * @return true if layout is cached
+         */
+        public boolean prepare(Object id, CharSequence text, TextStyle style) {
+            Integer availWidth;
+            synchronized (this) {
+                availWidth = availWidths.get(style);
+                if (availWidth == null) return false;
+                Layout cached = cache.get(new Key(id, style, availWidth));
+                if (cached != null && TextUtils.equals(cached.getText(), text)) return true;
+            }
+            Layout layout = build(text, style, availWidth);
+            synchronized (this) {
+                cache.put(new Key(id, style, availWidth), layout);
+                prepared++;
+            }
+            if (debug) Log.w(TAG, "prepare() id: " + id + ", width: " + availWidth + " -> " + layout.getWidth() + "x" + layout.getHeight());
+            return true;
+        }
+
+        /** @return cached layout or builds new one right here if not found */
+        public Layout obtain(Object id, CharSequence text, TextStyle style, int availWidth) {
+            Key key = new Key(id, style, availWidth);
+            synchronized (this) {
+                availWidths.put(style, availWidth);
+                Layout layout = cache.get(key);
+                // the same id could come with another text, i.e. when cell is rebuilt
+                if (layout != null && TextUtils.equals(layout.getText(), text)) {
+                    hits++;
+                    return layout;
+                }
+                misses++;
+            }
+            Layout layout = build(text, style, availWidth);
+            synchronized (this) {
+                cache.put(key, layout);
+            }
+            if (debug) Log.w(TAG, "obtain() not prepared: " + id + ", width: " + availWidth + ", hits: " + hits + ", misses: " + misses);
+            return layout;
+        }
+
+        /** wrap_content like TextView does: as wide as the longest line, but not wider than available */
+        private static Layout build(CharSequence text, TextStyle style, int availWidth) {
+            TextPaint paint = style.createPaint();
+            int desiredWidth = (int) Math.ceil(Layout.getDesiredWidth(text, paint));
+            int width = Math.max(0, Math.min(desiredWidth, availWidth));
+            return new StaticLayout(text, paint, width, style.alignment, 1f, 0f, true);
+        }
+
+        public synchronized void setMaxEntries(int maxEntries) {
+            if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+            this.maxEntries = maxEntries;
+        }
+
+        public synchronized void clear() {
+            cache.clear();
+        }
+
+        /** @return number of layouts found in cache when view was measured */
+        public synchronized int getHitCount() {
+            return hits;
+        }
+
+        /** @return number of layouts built on the main thread when view was measured */
+        public synchronized int getMissCount() {
+            return misses;
+        }
+
+        /** @return number of layouts built ahead */
+        public synchronized int getPreparedCount() {
+            return prepared;
+        }
+
+        private static final class Key {
+            final Object id;
+            final TextStyle style;
+            final int availWidth;
+            Key(Object id, TextStyle style, int availWidth) {
+                this.id = id;
+                this.style = style;
+                this.availWidth = availWidth;
+            }
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                Key other = (Key) o;
+                return availWidth == other.availWidth && id.equals(other.id) && style.equals(other.style);
+            }
+            public int hashCode() {
+                return 31 * (31 * id.hashCode() + style.hashCode()) + availWidth;
+            }
+        }
+    }
+}
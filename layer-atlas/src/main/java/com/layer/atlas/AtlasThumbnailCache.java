@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.layer.atlas.Atlas.Tools;
+
+/**
+ * Keeps downsampled images on disk, so they are not decoded from full-size originals again after
+ * restart or eviction from {@link Atlas.ImageLoader}'s memory cache. Thumbnails are keyed by image id
+ * and size they were required with. Files are evicted least recently used first when total size
+ * exceeds {@link #getMaxBytes()}.
+ * <p>
+ * Opening takes a single directory listing, which happens on the first access from decoding thread.
+ * File's lastModified serves as its access time, so LRU order survives restarts. Thread-safe
+ */
+public class AtlasThumbnailCache {
+    private static final String TAG = AtlasThumbnailCache.class.getSimpleName();
+    private static final boolean debug = false;
+
+    public static final long DEFAULT_MAX_BYTES = 20 * 1024 * 1024;
+
+    private static final int FILE_MAGIC = 0x41544831;      // "ATH1"
+    private static final String FILE_SUFFIX = ".thumb";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int JPEG_QUALITY = 85;
+
+    private final File dir;
+    private long maxBytes;
+
+    /** file name -> file size, access ordered. Filled by {@link #open()} */
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(64, 1f, true);
+    private long sizeBytes = 0;
+    private boolean opened = false;
+
+    // counters
+    private int hits = 0;
+    private int misses = 0;
+    private int writes = 0;
+
+    public AtlasThumbnailCache(File dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    public AtlasThumbnailCache(File dir, long maxBytes) {
+        if (dir == null) throw new IllegalArgumentException("dir cannot be null");
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes cannot be negative: " + maxBytes);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return thumbnail stored for image id and required size or null if there is none.
+     * Unreadable files are deleted
+     */
+    public Thumbnail get(Object id, int requiredWidth, int requiredHeight) {
+        String fileName = fileNameOf(id, requiredWidth, requiredHeight);
+        synchronized (this) {
+            open();
+            if (!files.containsKey(fileName)) {
+                misses++;
+                return null;
+            }
+        }
+        File file = new File(dir, fileName);
+        Thumbnail result = null;
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+            if (is.readInt() == FILE_MAGIC) {
+                int originalWidth = is.readInt();
+                int originalHeight = is.readInt();
+                Bitmap bmp = BitmapFactory.decodeStream(is);
+                if (bmp != null) result = new Thumbnail(bmp, originalWidth, originalHeight);
+            }
+        } catch (IOException e) {
+            if (debug) Log.w(TAG, "get() cannot read " + file.getName() + ", id: " + id, e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "get() out of memory, id: " + id);
+            return null;                            // file is fine, keep it
+        } finally {
+            Tools.closeQuietly(is);
+        }
+
+        synchronized (this) {
+            if (result == null) {
+                misses++;
+                remove(fileName);
+                return null;
+            }
+            hits++;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        if (debug) Log.w(TAG, "get() hit: " + id + " " + requiredWidth + "x" + requiredHeight + " -> " + result.bitmap.getWidth() + "x" + result.bitmap.getHeight());
+        return result;
+    }
+
+    /**
+     * Stores bitmap decoded for image id and required size. Opaque bitmaps are stored as JPEG, others as PNG.
+     * Writing happens on the calling thread, so don't call it from the main one
+     *
+     * @param originalWidth  - dimensions of the original image bitmap was decoded from
+     * @param originalHeight - are returned with {@link Thumbnail}
+     */
+    public void put(Object id, int requiredWidth, int requiredHeight, Bitmap bitmap, int originalWidth, int originalHeight) {
+        if (bitmap == null) throw new IllegalArgumentException("bitmap cannot be null");
+        String fileName = fileNameOf(id, requiredWidth, requiredHeight);
+        synchronized (this) {
+            open();
+        }
+        // unique name, as the same thumbnail could be written by several threads at once
+        File tmp = new File(dir, fileName + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        DataOutputStream os = null;
+        boolean written = false;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 16 * 1024));
+            os.writeInt(FILE_MAGIC);
+            os.writeInt(originalWidth);
+            os.writeInt(originalHeight);
+            Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            written = bitmap.compress(format, JPEG_QUALITY, os);
+            os.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "put() cannot write " + tmp.getName() + ", id: " + id, e);
+        } finally {
+            Tools.closeQuietly(os);
+        }
+        if (!written) {
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            File file = new File(dir, fileName);
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "put() cannot rename " + tmp.getName() + " to " + fileName);
+                tmp.delete();
+                return;
+            }
+            Long previous = files.put(fileName, file.length());
+            if (previous != null) sizeBytes -= previous;
+            sizeBytes += file.length();
+            writes++;
+            trimToSize(maxBytes);
+            if (debug) Log.w(TAG, "put() id: " + id + " " + requiredWidth + "x" + requiredHeight + ", bytes: " + file.length() + ", files: " + files.size() + ", total: " + sizeBytes);
+        }
+    }
+
+    /** Deletes all stored thumbnails */
+    public synchronized void clear() {
+        open();
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes cannot be negative: " + maxBytes);
+        this.maxBytes = maxBytes;
+        if (opened) trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return bytes taken by stored thumbnails */
+    public synchronized long getSizeBytes() {
+        open();
+        return sizeBytes;
+    }
+
+    /** @return number of thumbnails served instead of decoding originals */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /** @return number of thumbnails stored */
+    public synchronized int getWriteCount() {
+        return writes;
+    }
+
+    /** Lists directory once, oldest files first. Leftovers of interrupted writes are deleted. Must be called under lock */
+    private void open() {
+        if (opened) return;
+        opened = true;
+        long started = System.currentTimeMillis();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "open() cannot create " + dir.getAbsolutePath());
+            return;
+        }
+        File[] listed = dir.listFiles();
+        if (listed == null) return;
+        final long[] lastModified = new long[listed.length];
+        Integer[] order = new Integer[listed.length];
+        for (int i = 0; i < listed.length; i++) {
+            lastModified[i] = listed[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                long left = lastModified[lhs];
+                long right = lastModified[rhs];
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (Integer i : order) {
+            File file = listed[i];
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                long length = file.length();
+                files.put(file.getName(), length);
+                sizeBytes += length;
+            } else if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+        trimToSize(maxBytes);
+        if (debug) Log.w(TAG, "open() files: " + files.size() + ", bytes: " + sizeBytes + " in " + (System.currentTimeMillis() - started) + "ms");
+    }
+
+    /** Must be called under lock */
+    private void remove(String fileName) {
+        Long length = files.remove(fileName);
+        if (length != null) sizeBytes -= length;
+        new File(dir, fileName).delete();
+    }
+
+    /** Deletes least recently used files until size fits. Must be called under lock */
+    private void trimToSize(long bytesToFit) {
+        for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator(); sizeBytes > bytesToFit && it.hasNext();) {
+            Map.Entry<String, Long> eldest = it.next();
+            sizeBytes -= eldest.getValue();
+            it.remove();
+            new File(dir, eldest.getKey()).delete();
+        }
+    }
+
+    /** ids are usually Uris with characters invalid for file names, so digest is used */
+    private static String fileNameOf(Object id, int requiredWidth, int requiredHeight) {
+        String key = id + "@" + requiredWidth + "x" + requiredHeight;
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append(FILE_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /** Stored bitmap with dimensions of the original image */
+    public static final class Thumbnail {
+        public final Bitmap bitmap;
+        public final int originalWidth;
+        public final int originalHeight;
+        Thumbnail(Bitmap bitmap, int originalWidth, int originalHeight) {
+            this.bitmap = bitmap;
+            this.originalWidth = originalWidth;
+            this.originalHeight = originalHeight;
+        }
+    }
+}
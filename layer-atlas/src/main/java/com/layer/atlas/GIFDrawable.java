@@ -23,6 +23,9 @@ import android.graphics.drawable.Drawable;
 import android.util.Log;
 
 /**
+ * Plays {@link Movie} in loop. Next frame is requested from {@link Atlas#gifAnimator} on each draw, 
+ * so drawable animates only while it is drawn and visible. Single-frame GIFs are not redrawn at all
+ * 
  * @author Oleg Orlov
  * @since  24 Jun 2015
  */
@@ -32,6 +35,12 @@ public class GIFDrawable extends Drawable {
     
     /** By default first frame to show wouldn't depend on time of Drawable creation */
     private static final long defaultCreatedAt = System.currentTimeMillis();
+    
+    /** 
+     * Movie doesn't expose delays of its frames, so the shortest delay browsers honor is assumed. 
+     * Actual rate is capped by {@link Atlas.GIFAnimator#getMaxFps()} 
+     */
+    public static final long MIN_FRAME_DELAY_MS = 20;
 
     private Movie gif;
     private long createdAt = defaultCreatedAt;
@@ -67,7 +76,22 @@ public class GIFDrawable extends Drawable {
         canvas.restoreToCount(saved);
         if (debug) Log.w(TAG, "draw() gif: " + gif.width() + "x" + gif.height() + " @" + gif.duration() 
                 + " time: " + time + ", bounds: " + getBounds().left + "x" + getBounds().top);
-        invalidateSelf();
+        if (gif.duration() > 0 && isVisible()) {
+            // don't skip the first frame when loop restarts
+            long delay = Math.min(MIN_FRAME_DELAY_MS, gif.duration() - time);
+            Atlas.gifAnimator.requestFrame(this, Math.max(delay, 0));
+        }
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+        boolean changed = super.setVisible(visible, restart);
+        if (!visible) {
+            Atlas.gifAnimator.cancel(this);
+        } else if (changed) {
+            invalidateSelf();
+        }
+        return changed;
     }
 
     @Override
@@ -21,6 +21,8 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.layer.atlas.Atlas;
+import com.layer.atlas.Atlas.ImageLoader;
+import com.layer.atlas.Atlas.ImageLoader.ImageSpec;
 import com.layer.atlas.Atlas.ImageLoader.InputStreamProvider;
 import com.layer.atlas.AtlasMessagesList;
 import com.layer.atlas.GIFDrawable;
@@ -30,10 +32,13 @@ import com.layer.sdk.messaging.MessagePart;
  * @author Oleg Orlov
  * @since  21 Jun 2015
  */
-public class GIFCell extends ImageCell {
+public class GIFCell extends ImageCell implements ImageLoader.ImageLoadListener {
     private static final String TAG = GIFCell.class.getSimpleName();
     private static final boolean debug = false;
     
+    /** Movie is decoded by loader directly, not by pipeline */
+    private ImageSpec imageSpec;
+    
     public GIFCell(MessagePart fullImagePart, MessagePart previewImagePart, int width, int height, int orientation, AtlasMessagesList messagesList) {
         super(fullImagePart, previewImagePart, width, height, orientation, messagesList);
     }
@@ -42,19 +47,17 @@ public class GIFCell extends ImageCell {
         super(fullImagePart, messagesList);
     }
 
+    /** Movie is always decoded at its own size, so it is cached by part id regardless of target size */
     @Override
-    protected Drawable getDrawable(MessagePart workingPart) {
+    protected Drawable getDrawable(MessagePart workingPart, int requiredWidth, int requiredHeight) {
         Movie mov  = (Movie) Atlas.imageLoader.getImageFromCache(workingPart.getId());
         
-        // TODO: calculate properly with rotation
-        int requiredWidth  = messagesList.getWidth();
-        int requiredHeight = messagesList.getHeight();
-        
         if (mov != null) {
             if (debug) Log.i(TAG, "gif.onBind() returned from cache! " + mov.width() + "x" + mov.height() 
                     + ", req: " + requiredWidth + "x" + requiredHeight + " for " + workingPart.getId());
             return new GIFDrawable(mov);
-        } else if (workingPart.isContentReady()){
+        } else if (workingPart.isContentReady() || getPipeline().isDownloading(workingPart)) {
+            // requested before download completes, image waits in loader and is decoded once pipeline gets the part
             final Uri id = workingPart.getId();
             InputStreamProvider streamProvider = new Atlas.MessagePartBufferedStreamProvider(workingPart); 
             imageSpec = Atlas.imageLoader.requestImage(id, streamProvider, requiredWidth, requiredHeight, true, this);
@@ -66,4 +69,15 @@ public class GIFCell extends ImageCell {
     protected MessagePart getWorkingPart() {
         return fullPart;
     }
+    
+    @Override
+    protected void onUnbind() {
+        super.onUnbind();
+        if (imageSpec != null) Atlas.imageLoader.setVisible(imageSpec.id, false);
+    }
+    
+    @Override
+    public void onImageLoaded(ImageSpec spec) {
+        requestRebind();
+    }
 }
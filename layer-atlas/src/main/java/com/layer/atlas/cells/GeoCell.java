@@ -51,11 +51,8 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
     
     ImageSpec spec;
     
-    final AtlasMessagesList messagesList;
-
     public GeoCell(MessagePart messagePart, AtlasMessagesList messagesList) {
         super(messagePart);
-        this.messagesList = messagesList;
         
         String jsonLonLat = new String(messagePart.getData());
         try {
@@ -81,7 +78,7 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
         View containerMy    = cellRoot.findViewById(R.id.atlas_view_messages_cell_geo_container_my);
         View containerTheir = cellRoot.findViewById(R.id.atlas_view_messages_cell_geo_container_their);
         
-        boolean myMessage = messagesList.getLayerClient().getAuthenticatedUserId().equals(messagePart.getMessage().getSender().getUserId()); 
+        boolean myMessage = isMyMessage(); 
         if (myMessage) {
             containerMy.setVisibility(View.VISIBLE);
             containerTheir.setVisibility(View.GONE);
@@ -168,11 +165,16 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
 
     @Override
     public void onDownloadComplete(String url, final File file) {
-        messagesList.requestRefresh();
+        requestRebind();
+    }
+
+    @Override
+    protected void onUnbind() {
+        if (spec != null) Atlas.imageLoader.setVisible(spec.id, false);
     }
 
     @Override
     public void onImageLoaded(ImageSpec spec) {
-        messagesList.requestRefresh();
+        requestRebind();
     }
 }
\ No newline at end of file
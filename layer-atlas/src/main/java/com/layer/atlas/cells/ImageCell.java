@@ -15,27 +15,21 @@
  */
 package com.layer.atlas.cells;
 
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.layer.atlas.Atlas;
 import com.layer.atlas.Atlas.ImageLoader;
-import com.layer.atlas.Atlas.ImageLoader.ImageSpec;
-import com.layer.atlas.Atlas.MessagePartStreamProvider;
 import com.layer.atlas.Atlas.Tools;
+import com.layer.atlas.AtlasImagePipeline;
 import com.layer.atlas.AtlasImageView;
 import com.layer.atlas.AtlasMessagesList;
 import com.layer.atlas.AtlasMessagesList.Cell;
 import com.layer.atlas.AtlasProgressView;
 import com.layer.atlas.R;
 import com.layer.atlas.ShapedFrameLayout;
-import com.layer.sdk.listeners.LayerProgressListener;
 import com.layer.sdk.messaging.MessagePart;
 
 /**
@@ -43,7 +37,7 @@ import com.layer.sdk.messaging.MessagePart;
  * @author Oleg Orlov
  * @since  13 May 2015
  */
-public class ImageCell extends Cell implements LayerProgressListener, ImageLoader.ImageLoadListener {
+public class ImageCell extends Cell implements AtlasImagePipeline.Listener {
     private static final String TAG = ImageCell.class.getSimpleName();
     private static final boolean debug = false;
     
@@ -52,12 +46,8 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
     public final int declaredWidth;
     public final int declaredHeight;
     public final int orientation;
-    protected ImageLoader.ImageSpec imageSpec;
-    
-    /** if more than 0 - download is in progress */
-    volatile long downloadProgressBytes = -1;
-    
-    final AtlasMessagesList messagesList;
+    /** pipeline cell listens to while bound */
+    private AtlasImagePipeline boundPipeline;
     
     /** Raw bitmap: as needed (0deg). Dimensions: respect bitmap: cell: 3264x2448@0, bitmap: 1632x1224 */
     public static final int ORIENTATION_NORMAL = 0;
@@ -79,16 +69,16 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
         this.declaredWidth = width;
         this.declaredHeight = height;
         this.orientation = orientation;
-        this.messagesList = messagesList;
     }
     @Override
     public View onBind(final ViewGroup cellContainer) {
+        AtlasMessagesList messagesList = getMessagesList();
         View rootView = Tools.findChildById(cellContainer, R.id.atlas_view_messages_cell_image);
         if (rootView == null) {
             rootView = LayoutInflater.from(cellContainer.getContext()).inflate(R.layout.atlas_view_messages_cell_image, cellContainer, false); 
         }
         
-        boolean myMessage = messagesList.getLayerClient().getAuthenticatedUserId().equals(messagePart.getMessage().getSender().getUserId());
+        boolean myMessage = isMyMessage();
         
         View imageContainerMy = rootView.findViewById(R.id.atlas_view_messages_cell_image_container_my);
         View imageContainerTheir = rootView.findViewById(R.id.atlas_view_messages_cell_image_container_their);
@@ -105,20 +95,23 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
             imageContainerTheir.setVisibility(View.VISIBLE);
         }
 
-        // understanging image's dimensions
-        int imgWidth  = this.declaredWidth;
-        int imgHeight = this.declaredHeight;
-        if (debug) Log.w(TAG, "img.onBind() declared image: " + declaredWidth + "x" + declaredHeight);
+        AtlasImagePipeline pipeline = getPipeline();
+        if (boundPipeline != null && boundPipeline != pipeline) boundPipeline.removeListener(this);
+        pipeline.addListener(this);
+        boundPipeline = pipeline;
         
-        // no declared dimensions? go to imageSpec!
-        if ((imgWidth == 0 || imgHeight == 0) && imageSpec != null && imageSpec.originalWidth != 0) {
-            if (debug) Log.w(TAG, "img.onBind() using imgSize from spec:   " + imageSpec.originalWidth + "x" + imageSpec.originalHeight);
-            imgWidth  = imageSpec.originalWidth;
-            imgHeight = imageSpec.originalHeight;
-        }
+        // understanging image's dimensions
+        int imgWidth  = pipeline.getOriginalWidth();
+        int imgHeight = pipeline.getOriginalHeight();
+        if (debug) Log.w(TAG, "img.onBind() declared or decoded image: " + imgWidth + "x" + imgHeight);
         
         MessagePart workingPart = getWorkingPart();
-        Drawable drawable = getDrawable(workingPart);
+        Drawable drawable = null;
+        boolean sizeKnown = imgWidth != 0 && imgHeight != 0;
+        if (!sizeKnown) {
+            // decode at list size to find out image's dimensions
+            drawable = getDrawable(workingPart, messagesList.getWidth(), messagesList.getHeight());
+        }
 
         // still no size known? fallback to bitmap's size
         if ((imgWidth == 0 || imgHeight == 0) && drawable != null) {
@@ -130,7 +123,8 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
         // calculate appropriate View size. If image dimensions are unknown, use default size 192dp
         int viewWidth  = (int) (imgWidth  != 0 ? imgWidth  : Tools.getPxFromDp(192, imageContainer.getContext()));
         int viewHeight = (int) (imgHeight != 0 ? imgHeight : Tools.getPxFromDp(192, imageContainer.getContext()));
-        if (orientation == ImageCell.ORIENTATION_1_CW_180 || orientation == ImageCell.ORIENTATION_3_CCW_90) {
+        boolean swapped = orientation == ImageCell.ORIENTATION_1_CW_180 || orientation == ImageCell.ORIENTATION_3_CCW_90;
+        if (swapped) {
              int oldWidth = viewWidth;
              viewWidth = viewHeight;
              viewHeight = oldWidth;
@@ -169,26 +163,32 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
         
         imageView.setContentDimensions(viewWidth, viewHeight);
         imageView.orientation = orientation;
+        
+        if (sizeKnown) {
+            // bitmap is rotated in view
+            drawable = getDrawable(workingPart, swapped ? viewHeight : viewWidth, swapped ? viewWidth : viewHeight);
+        }
 
         if (drawable != null) {
             imageView.setDrawable(drawable);
         } else {
             imageView.setDrawable(Tools.EMPTY_DRAWABLE);
-            if ( ! workingPart.isContentReady() && downloadProgressBytes == -1) {
-                workingPart.download(this);
-            }
+            // bubble has nothing to show without its working part, so it is downloaded as it always was: 
+            // preview of 3-part images, the only part of others, the animated one of GIFs. Full part of 
+            // 3-part images is left to the viewer
+            pipeline.download(workingPart);
         }
         
         AtlasProgressView progressMy = (AtlasProgressView) rootView.findViewById(R.id.atlas_view_messages_cell_image_my_progress);
         AtlasProgressView progressTheir = (AtlasProgressView) rootView.findViewById(R.id.atlas_view_messages_cell_image_their_progress);
         AtlasProgressView progressView = myMessage ? progressMy : progressTheir;
-        if (downloadProgressBytes > 0) {
-            float progress = 1.0f * downloadProgressBytes / workingPart.getSize();
+        float progress = pipeline.getDownloadProgress(workingPart);
+        if (progress > 0) {
             if (debug) Log.w(TAG, "img.onBind() showing progress: " + progress);
             progressView.setVisibility(View.VISIBLE);
             progressView.setProgress(progress);
         } else {
-            if (debug) Log.w(TAG, "img.onBind() no progressView. bytes: " + downloadProgressBytes);
+            if (debug) Log.w(TAG, "img.onBind() no progressView. progress: " + progress);
             progressView.setVisibility(View.GONE);
         }
         
@@ -216,52 +216,40 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
         return rootView;
     }
     
+    /** @return part to download first and to show download progress of */
     protected MessagePart getWorkingPart() {
         return previewPart != null ? previewPart : fullPart;
     }
+    
+    /** @return pipeline shared with other views of the image, i.e. full-screen viewer */
+    public AtlasImagePipeline getPipeline() {
+        return AtlasImagePipeline.obtain(fullPart, previewPart, declaredWidth, declaredHeight, orientation);
+    }
 
     /** 
+     * Full image is shown once its content is ready, preview is shown until then. Both are decoded for 
+     * the size bucket of target size (see {@link ImageLoader#sizedId(Object, int, int)}), so bubbles get 
+     * small bitmaps and full-size one is decoded only when asked for elsewhere.
+     * 
+     * @param targetWidth   - 
+     * @param targetHeight  - size of bitmap to fill imageView with
      * @return drawable to set into imageView. Assumed that it return real drawable finally 
      */
-    protected Drawable getDrawable(MessagePart workingPart) {
-        // TODO: calculate properly with rotation
-        int requiredWidth  = messagesList.getWidth();
-        int requiredHeight = messagesList.getHeight();
-        
-        Bitmap bmp = (Bitmap) Atlas.imageLoader.getImageFromCache(workingPart.getId());
-        if (bmp != null) {
-            if (debug) Log.i(TAG, "img.onBind() returned from cache! " + bmp.getWidth() + "x" + bmp.getHeight() 
-                    + " " + bmp.getByteCount() + " bytes, req: " + requiredWidth + "x" + requiredHeight + " for " + workingPart.getId());
-            return new BitmapDrawable(bmp);
-        } else if (workingPart.isContentReady()){
-            final Uri id = workingPart.getId();
-            final MessagePartStreamProvider streamProvider = new MessagePartStreamProvider(workingPart);
-            imageSpec = Atlas.imageLoader.requestImage(id, streamProvider, requiredWidth, requiredHeight, false, this);
-        }
-        return null;
-    }
-
-    // LayerDownloadListener (when downloading part)
-    public void onProgressStart(MessagePart part, Operation operation) {
+    protected Drawable getDrawable(MessagePart workingPart, int targetWidth, int targetHeight) {
+        return getPipeline().getDrawable(targetWidth, targetHeight);
     }
-    public void onProgressUpdate(MessagePart part, Operation operation, long transferredBytes) {
-        MessagePart workingPart = previewPart != null ? previewPart : fullPart;
-        if (debug) Log.w(TAG, "onProgressUpdate() transferred: " + transferredBytes + " of " + workingPart.getSize() + ", progress: " + (1.0f * transferredBytes / workingPart.getSize()));
-        downloadProgressBytes = transferredBytes;
-        messagesList.requestRefresh();
-    }
-    public void onProgressError(MessagePart part, Operation operation, Throwable cause) {
-        downloadProgressBytes = -1;
-        messagesList.requestRefresh();
-    }
-    public void onProgressComplete(MessagePart part, Operation operation) {
-        downloadProgressBytes = -1;
-        messagesList.requestRefresh();
+    
+    @Override
+    public void onImageUpdate(AtlasImagePipeline pipeline) {
+        requestRebind();
     }
     
     @Override
-    public void onImageLoaded(ImageSpec spec) {
-        messagesList.requestRefresh();
+    protected void onUnbind() {
+        if (boundPipeline != null) {
+            boundPipeline.removeListener(this);
+            boundPipeline = null;
+        }
     }
 
     @Override